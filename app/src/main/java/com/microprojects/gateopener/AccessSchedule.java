@@ -0,0 +1,350 @@
+package com.microprojects.gateopener;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+// A whitelisted number that may only open the gate at certain times. Config form:
+//   {"number": "+32471234567", "days": "mon-fri", "from": "08:00", "to": "17:00",
+//    "valid_from": "2026-01-01", "valid_until": "2026-06-30"}
+// or several windows: {"number": "...", "windows": [{"days": "sat", "from": "09:00", "to": "12:00"}, ...]}
+// Everything is compiled at load time into sorted minute-of-week intervals, so checking
+// a ring is a binary search with no date parsing.
+public class AccessSchedule {
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final String[] DAY_NAMES = {"mon", "tue", "wed", "thu", "fri", "sat", "sun"};
+
+    final long key;
+    // Epoch millis, valid in [validFrom, validUntil)
+    final long validFrom;
+    final long validUntil;
+    // Minutes since Monday 00:00, sorted and non-overlapping, each window is [start, end)
+    final int[] windowStarts;
+    final int[] windowEnds;
+
+    private AccessSchedule(long key, long validFrom, long validUntil, int[] windowStarts, int[] windowEnds) {
+        this.key = key;
+        this.validFrom = validFrom;
+        this.validUntil = validUntil;
+        this.windowStarts = windowStarts;
+        this.windowEnds = windowEnds;
+    }
+
+    public static boolean isScheduleEntry(Object entry) {
+        return entry instanceof JSONObject;
+    }
+
+    public static AccessSchedule fromJson(JSONObject entry) throws JSONException {
+        long key = PhoneNumberSet.encode(entry.getString("number"));
+        if (key == PhoneNumberSet.NO_KEY) {
+            throw new JSONException("Schedule entry without a usable number");
+        }
+        
+        long validFrom = entry.has("valid_from") ? parseDate(entry.getString("valid_from"), 0) : Long.MIN_VALUE;
+        long validUntil = entry.has("valid_until") ? parseDate(entry.getString("valid_until"), 1) : Long.MAX_VALUE;
+        
+        List<int[]> windows = new ArrayList<int[]>();
+        JSONArray windowArray = entry.optJSONArray("windows");
+        if (windowArray != null) {
+            for (int i = 0; i < windowArray.length(); i++) {
+                addWindows(windowArray.getJSONObject(i), windows);
+            }
+        } else {
+            addWindows(entry, windows);
+        }
+        
+        List<int[]> merged = merge(windows);
+        int[] starts = new int[merged.size()];
+        int[] ends = new int[merged.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = merged.get(i)[0];
+            ends[i] = merged.get(i)[1];
+        }
+        return new AccessSchedule(key, validFrom, validUntil, starts, ends);
+    }
+
+    public boolean allows(long nowMillis, int minuteOfWeek) {
+        if (nowMillis < validFrom || nowMillis >= validUntil) {
+            return false;
+        }
+        // Last window starting at or before now
+        int low = 0;
+        int high = windowStarts.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (windowStarts[mid] <= minuteOfWeek) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 && minuteOfWeek < windowEnds[found];
+    }
+
+    public static int minuteOfWeek(Calendar calendar) {
+        // Calendar weeks start on Sunday = 1; ours start on Monday = 0
+        int day = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        return day * MINUTES_PER_DAY + calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+    }
+
+    private static void addWindows(JSONObject spec, List<int[]> windows) throws JSONException {
+        boolean[] days = parseDays(spec.optString("days", ""));
+        int from = parseTime(spec.optString("from", "00:00"));
+        int to = parseTime(spec.optString("to", "24:00"));
+        
+        for (int day = 0; day < 7; day++) {
+            if (!days[day]) {
+                continue;
+            }
+            int dayStart = day * MINUTES_PER_DAY;
+            if (from < to) {
+                windows.add(new int[]{dayStart + from, dayStart + to});
+            } else {
+                // Overnight window, e.g. 22:00-06:00, runs into the next day (Sunday wraps to Monday)
+                windows.add(new int[]{dayStart + from, dayStart + MINUTES_PER_DAY});
+                int nextDayStart = ((day + 1) % 7) * MINUTES_PER_DAY;
+                if (to > 0) {
+                    windows.add(new int[]{nextDayStart, nextDayStart + to});
+                }
+            }
+        }
+    }
+
+    // "mon-fri", "sat,sun", "fri-mon"; empty, "all" or "daily" means every day
+    private static boolean[] parseDays(String spec) throws JSONException {
+        boolean[] days = new boolean[7];
+        String trimmed = spec.trim().toLowerCase(Locale.US);
+        if (trimmed.isEmpty() || trimmed.equals("all") || trimmed.equals("daily")) {
+            Arrays.fill(days, true);
+            return days;
+        }
+        
+        for (String part : trimmed.split(",")) {
+            String[] range = part.trim().split("-");
+            int first = dayIndex(range[0]);
+            int last = range.length > 1 ? dayIndex(range[1]) : first;
+            for (int day = first; ; day = (day + 1) % 7) {
+                days[day] = true;
+                if (day == last) {
+                    break;
+                }
+            }
+        }
+        return days;
+    }
+
+    private static int dayIndex(String name) throws JSONException {
+        String prefix = name.trim();
+        if (prefix.length() >= 3) {
+            prefix = prefix.substring(0, 3);
+        }
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            if (DAY_NAMES[i].equals(prefix)) {
+                return i;
+            }
+        }
+        throw new JSONException("Unknown day: " + name);
+    }
+
+    private static int parseTime(String time) throws JSONException {
+        String[] parts = time.trim().split(":");
+        try {
+            int hours = Integer.parseInt(parts[0]);
+            int minutes = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            int total = hours * 60 + minutes;
+            if (hours < 0 || minutes < 0 || minutes >= 60 || total > MINUTES_PER_DAY) {
+                throw new JSONException("Invalid time: " + time);
+            }
+            return total;
+        } catch (NumberFormatException e) {
+            throw new JSONException("Invalid time: " + time);
+        }
+    }
+
+    // Local midnight of the given yyyy-MM-dd date, plus dayOffset days
+    private static long parseDate(String date, int dayOffset) throws JSONException {
+        try {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(new SimpleDateFormat("yyyy-MM-dd", Locale.US).parse(date.trim()));
+            calendar.add(Calendar.DAY_OF_MONTH, dayOffset);
+            return calendar.getTimeInMillis();
+        } catch (java.text.ParseException e) {
+            throw new JSONException("Invalid date: " + date);
+        }
+    }
+
+    private static List<int[]> merge(List<int[]> windows) {
+        List<int[]> sorted = new ArrayList<int[]>(windows);
+        Collections.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        
+        List<int[]> merged = new ArrayList<int[]>();
+        for (int[] window : sorted) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && window[0] <= last[1]) {
+                last[1] = Math.max(last[1], window[1]);
+            } else {
+                merged.add(new int[]{window[0], window[1]});
+            }
+        }
+        return merged;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(key);
+        out.writeLong(validFrom);
+        out.writeLong(validUntil);
+        out.writeInt(windowStarts.length);
+        for (int i = 0; i < windowStarts.length; i++) {
+            out.writeInt(windowStarts[i]);
+            out.writeInt(windowEnds[i]);
+        }
+    }
+
+    static AccessSchedule readFrom(DataInputStream in) throws IOException {
+        long key = in.readLong();
+        long validFrom = in.readLong();
+        long validUntil = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > MINUTES_PER_WEEK) {
+            throw new IOException("Corrupt schedule");
+        }
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = in.readInt();
+            ends[i] = in.readInt();
+        }
+        return new AccessSchedule(key, validFrom, validUntil, starts, ends);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AccessSchedule)) {
+            return false;
+        }
+        AccessSchedule other = (AccessSchedule) o;
+        return key == other.key && validFrom == other.validFrom && validUntil == other.validUntil
+                && Arrays.equals(windowStarts, other.windowStarts) && Arrays.equals(windowEnds, other.windowEnds);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (key ^ (key >>> 32)) * 31 + Arrays.hashCode(windowStarts);
+    }
+
+    // Schedules indexed by full number and by 9-digit suffix, the same matching rules as plain entries
+    static final class Index {
+        static final Index EMPTY = new Index(new AccessSchedule[0], 9);
+        
+        private final AccessSchedule[] schedules;
+        private final long[] exactKeys;
+        private final int[] exactOwners;
+        private final long[] suffixKeys;
+        private final int[] suffixOwners;
+        private final int suffixLength;
+        
+        Index(AccessSchedule[] schedules, int suffixLength) {
+            this.schedules = schedules;
+            this.suffixLength = suffixLength;
+            long[][] exact = sortedKeys(schedules, 0);
+            long[][] suffix = sortedKeys(schedules, suffixLength);
+            exactKeys = exact[0];
+            exactOwners = toInts(exact[1]);
+            suffixKeys = suffix[0];
+            suffixOwners = toInts(suffix[1]);
+        }
+        
+        int size() {
+            return schedules.length;
+        }
+        
+        AccessSchedule[] getSchedules() {
+            return schedules;
+        }
+        
+        // Returns null if no schedule covers the number, otherwise whether one allows it now
+        Boolean allows(long key, long suffix, long nowMillis, int minuteOfWeek) {
+            Boolean result = check(exactKeys, exactOwners, key, nowMillis, minuteOfWeek);
+            if (result != null && result) {
+                return result;
+            }
+            Boolean bySuffix = check(suffixKeys, suffixOwners, suffix, nowMillis, minuteOfWeek);
+            return bySuffix != null ? bySuffix : result;
+        }
+        
+        private Boolean check(long[] keys, int[] owners, long key, long nowMillis, int minuteOfWeek) {
+            if (key == PhoneNumberSet.NO_KEY) {
+                return null;
+            }
+            int i = Arrays.binarySearch(keys, key);
+            if (i < 0) {
+                return null;
+            }
+            // Several schedules can share a key; any of them may allow the call
+            while (i > 0 && keys[i - 1] == key) {
+                i--;
+            }
+            for (; i < keys.length && keys[i] == key; i++) {
+                if (schedules[owners[i]].allows(nowMillis, minuteOfWeek)) {
+                    return Boolean.TRUE;
+                }
+            }
+            return Boolean.FALSE;
+        }
+        
+        private static long[][] sortedKeys(final AccessSchedule[] schedules, final int suffixLength) {
+            Integer[] order = new Integer[schedules.length];
+            final long[] keys = new long[schedules.length];
+            int count = 0;
+            for (int i = 0; i < schedules.length; i++) {
+                long key = suffixLength > 0 ? PhoneNumberSet.suffixKey(schedules[i].key, suffixLength) : schedules[i].key;
+                if (key != PhoneNumberSet.NO_KEY) {
+                    keys[i] = key;
+                    order[count++] = i;
+                }
+            }
+            Arrays.sort(order, 0, count, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+                }
+            });
+            
+            long[][] result = new long[2][count];
+            for (int i = 0; i < count; i++) {
+                result[0][i] = keys[order[i]];
+                result[1][i] = order[i];
+            }
+            return result;
+        }
+        
+        private static int[] toInts(long[] values) {
+            int[] ints = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                ints[i] = (int) values[i];
+            }
+            return ints;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.microprojects.gateopener;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared runtime for the app's background work: gate triggers, heartbeats, relay lookups
+// and config reloads. A few named worker threads take tasks from one queue ordered by lane,
+// so a trigger jumps ahead of every queued heartbeat or config fetch; tasks in the same lane
+// run in order. Delayed and periodic tasks are timed on a single scheduler thread that only
+// hands them to the workers. Triggers and heartbeats are never refused: the heartbeat re-arms
+// itself from its own run, so a dropped hand-off would end it for good, and the lane only holds
+// the heartbeat and keep-warm. The other lanes share MAX_QUEUED slots, and a task past that is
+// dropped (its next period will come).
+// shutdown() drops the queued background work, lets running tasks and queued triggers finish,
+// and the next task starts a fresh runtime.
+public class BackgroundExecutor {
+
+    private static final String TAG = "BackgroundExecutor";
+    private static final int WORKERS = 3;
+    private static final int MAX_QUEUED = 16;
+    // A trigger that waited longer than this for a worker is worth a log line
+    private static final long SLOW_START_MS = 100;
+    
+    // In priority order
+    public enum Lane { TRIGGER, HEARTBEAT, DISCOVERY, CONFIG }
+    
+    private static BackgroundExecutor instance;
+    
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private long sequence;
+    // Per lane metrics, guarded by this
+    private final int[] queued = new int[Lane.values().length];
+    private final int[] completed = new int[Lane.values().length];
+    private final int[] dropped = new int[Lane.values().length];
+    private final long[] maxWaitMs = new long[Lane.values().length];
+
+    private BackgroundExecutor() {
+        pool = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "GateOpener-worker-" + threadCount.incrementAndGet());
+                    }
+                });
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "GateOpener-scheduler");
+            }
+        });
+    }
+
+    public static synchronized BackgroundExecutor getInstance() {
+        if (instance == null) {
+            instance = new BackgroundExecutor();
+        }
+        return instance;
+    }
+
+    // Stops the runtime; called from GateOpenerService.onDestroy
+    public static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        BackgroundExecutor executor = instance;
+        instance = null;
+        executor.scheduler.shutdownNow();
+        Iterator<Runnable> queue = executor.pool.getQueue().iterator();
+        while (queue.hasNext()) {
+            Task task = (Task) queue.next();
+            if (task.lane != Lane.TRIGGER) {
+                queue.remove();
+                executor.onDequeued(task);
+            }
+        }
+        executor.pool.shutdown();
+        Log.d(TAG, "Shut down: " + executor.getMetrics());
+    }
+
+    // Queues a task; false if it was dropped because its lane is full or the runtime stopped
+    public boolean execute(Lane lane, String name, Runnable runnable) {
+        Task task;
+        synchronized (this) {
+            if (isBounded(lane) && queuedBehindTriggers() >= MAX_QUEUED) {
+                dropped[lane.ordinal()]++;
+                Log.w(TAG, "Dropped " + name + ", queue full: " + getMetrics());
+                return false;
+            }
+            task = new Task(lane, name, runnable, sequence++);
+            queued[lane.ordinal()]++;
+        }
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            onDequeued(task);
+            Log.w(TAG, "Rejected " + name + ", executor stopped");
+            return false;
+        }
+    }
+
+    // Runs the task on a worker after delayMs; cancelling the future only cancels the hand-off.
+    // In a bounded lane the hand-off can be dropped like any execute(), so a task that re-arms
+    // itself belongs in the TRIGGER or HEARTBEAT lane.
+public ScheduledFuture<?> schedule(final Lane lane, final String name, final Runnable runnable, long delayMs) {
+        return scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(lane, name, runnable);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs the task every periodMs; a period is skipped while the previous run is still
+    // queued or running, so a slow task cannot pile up
+    public ScheduledFuture<?> schedulePeriodic(final Lane lane, final String name, final Runnable runnable,
+                                               long initialDelayMs, long periodMs) {
+        final AtomicBoolean pending = new AtomicBoolean();
+        final Runnable once = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    pending.set(false);
+                }
+            }
+        };
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.compareAndSet(false, true) && !execute(lane, name, once)) {
+                    pending.set(false);
+                }
+            }
+        }, initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized int getQueueDepth(Lane lane) {
+        return queued[lane.ordinal()];
+    }
+
+    // "active 1, trigger 0 queued / 3 done, heartbeat 1 queued / 120 done (max wait 4 ms), ..."
+    public synchronized String getMetrics() {
+        StringBuilder sb = new StringBuilder("active ").append(pool.getActiveCount());
+        for (Lane lane : Lane.values()) {
+            int i = lane.ordinal();
+            sb.append(", ").append(lane.name().toLowerCase()).append(' ')
+                    .append(queued[i]).append(" queued / ").append(completed[i]).append(" done");
+            if (dropped[i] > 0) {
+                sb.append(" / ").append(dropped[i]).append(" dropped");
+            }
+            if (maxWaitMs[i] > 0) {
+                sb.append(" (max wait ").append(maxWaitMs[i]).append(" ms)");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isBounded(Lane lane) {
+        return lane != Lane.TRIGGER && lane != Lane.HEARTBEAT;
+    }
+
+    private int queuedBehindTriggers() {
+        int total = 0;
+        for (Lane lane : Lane.values()) {
+            if (lane != Lane.TRIGGER) {
+                total += queued[lane.ordinal()];
+            }
+        }
+        return total;
+    }
+
+    private synchronized void onDequeued(Task task) {
+        queued[task.lane.ordinal()]--;
+    }
+
+    private synchronized void onStarted(Task task, long waitMs) {
+        int i = task.lane.ordinal();
+        queued[i]--;
+        maxWaitMs[i] = Math.max(maxWaitMs[i], waitMs);
+    }
+
+    private synchronized void onFinished(Task task) {
+        completed[task.lane.ordinal()]++;
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        final Lane lane;
+        final String name;
+        final Runnable runnable;
+        final long order;
+        final long queuedAt = SystemClock.elapsedRealtime();
+        
+        Task(Lane lane, String name, Runnable runnable, long order) {
+            this.lane = lane;
+            this.name = name;
+            this.runnable = runnable;
+            this.order = order;
+        }
+        
+        @Override
+        public int compareTo(Task other) {
+            if (lane != other.lane) {
+                return lane.ordinal() - other.lane.ordinal();
+            }
+            return order < other.order ? -1 : (order > other.order ? 1 : 0);
+        }
+        
+        @Override
+        public void run() {
+            long waitMs = SystemClock.elapsedRealtime() - queuedAt;
+            onStarted(this, waitMs);
+            if (lane == Lane.TRIGGER && waitMs > SLOW_START_MS) {
+                Log.w(TAG, name + " waited " + waitMs + " ms for a worker: " + getMetrics());
+            }
+            
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName();
+            thread.setName(threadName + " (" + name + ")");
+            Process.setThreadPriority(lane == Lane.TRIGGER
+                    ? Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + " failed: " + e.getMessage());
+            } finally {
+                thread.setName(threadName);
+                onFinished(this);
+            }
+        }
+    }
+}
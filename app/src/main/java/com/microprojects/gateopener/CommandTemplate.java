@@ -0,0 +1,209 @@
+package com.microprojects.gateopener;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Custom Shelly command from the config, compiled once into ready-to-send requests.
+// Either an ON command (shelly_method / shelly_endpoint / shelly_payload) with an optional
+// explicit OFF (shelly_off_endpoint / shelly_off_payload), or a shelly_sequence of steps.
+// "{relay}" (shelly_relay_id) and "{duration}" (shelly_pulse_ms in seconds) are substituted
+// in endpoints and payloads at compile time, so a trigger only sends bytes.
+// The compiled template is cached until invalidate() is called after a config change.
+public class CommandTemplate {
+
+    private static final String TAG = "CommandTemplate";
+    private static final String CONTENT_TYPE = "application/json";
+    
+    private static CommandTemplate cached;
+
+    public static class Step {
+        public final String method;
+        public final String path;
+        public final String contentType;
+        public final byte[] body;
+        // Wait before the next step
+        public final int delayMs;
+        public final String label;
+        
+        Step(String method, String path, byte[] body, int delayMs, String label) {
+            this.method = method;
+            this.path = path;
+            this.contentType = body != null ? CONTENT_TYPE : null;
+            this.body = body;
+            this.delayMs = delayMs;
+            this.label = label;
+        }
+    }
+
+    // ON, or the single pulse request when the device can time the pulse itself
+    public final Step on;
+    // Null when there is nothing to send for OFF (pulse mode or a sequence)
+    public final Step off;
+    // Null unless shelly_sequence is configured
+    public final List<Step> sequence;
+
+    private CommandTemplate(Step on, Step off, List<Step> sequence) {
+        this.on = on;
+        this.off = off;
+        this.sequence = sequence;
+    }
+
+    public boolean isSequence() {
+        return sequence != null;
+    }
+
+    public boolean isPulse() {
+        return sequence == null && off == null;
+    }
+
+    // The compiled template for the current config; null when no custom command is configured
+    public static synchronized CommandTemplate get(Context context) {
+        if (cached == null) {
+            SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
+            cached = compile(prefs);
+        }
+        return cached.on != null || cached.sequence != null ? cached : null;
+    }
+
+    public static synchronized void invalidate() {
+        cached = null;
+    }
+
+    private static CommandTemplate compile(SharedPreferences prefs) {
+        int pulseMs = prefs.getInt("shelly_pulse_ms", ShellyClient.DEFAULT_PULSE_MS);
+        String relay = String.valueOf(prefs.getInt("shelly_relay_id", 0));
+        String duration = String.valueOf(pulseMs / 1000.0);
+        
+        String sequenceJson = prefs.getString("shelly_sequence", "");
+        if (!sequenceJson.isEmpty()) {
+            try {
+                return new CommandTemplate(null, null, compileSequence(new JSONArray(sequenceJson), relay, duration));
+            } catch (JSONException e) {
+                Log.e(TAG, "Invalid shelly_sequence, using the ON/OFF command: " + e.getMessage());
+            }
+        }
+        
+        String endpoint = prefs.getString("shelly_endpoint", "");
+        if (endpoint.isEmpty()) {
+            return new CommandTemplate(null, null, null);
+        }
+        String method = normalizeMethod(prefs.getString("shelly_method", ""));
+        endpoint = substitute(endpoint, relay, duration);
+        String payload = substitute(prefs.getString("shelly_payload", ""), relay, duration);
+        
+        if (pulseMs > 0) {
+            String pulsePayload = toPulsePayload(endpoint, payload, pulseMs);
+            if (pulsePayload != null) {
+                // Single request, the device turns the relay off by itself
+                return new CommandTemplate(step(method, endpoint, pulsePayload, 0, "pulse"), null, null);
+            }
+        }
+        
+        String offEndpoint = prefs.getString("shelly_off_endpoint", "");
+        offEndpoint = offEndpoint.isEmpty() ? endpoint : substitute(offEndpoint, relay, duration);
+        String offPayload = prefs.getString("shelly_off_payload", "");
+        if (offPayload.isEmpty()) {
+            offPayload = toOffPayload(payload);
+        } else {
+            offPayload = substitute(offPayload, relay, duration);
+        }
+        if (offPayload == null) {
+            // Guessing an OFF command could leave the relay latched, so use the built-in commands
+            Log.e(TAG, "Cannot derive an OFF payload from " + payload + ", set shelly_off_payload; ignoring the custom command");
+            return new CommandTemplate(null, null, null);
+        }
+        if (offEndpoint.equals(endpoint) && endpoint.contains("turn=on")) {
+            // Gen1 style GET /relay/0?turn=on
+            offEndpoint = endpoint.replace("turn=on", "turn=off");
+        }
+        
+        int onTimeMs = pulseMs > 0 ? pulseMs : ShellyClient.DEFAULT_PULSE_MS;
+        return new CommandTemplate(step(method, endpoint, payload, onTimeMs, "ON"),
+                step(method, offEndpoint, offPayload, 0, "OFF"), null);
+    }
+
+    // [{"method":"POST","endpoint":"/rpc/Switch.Set","payload":"{...}","delay_ms":500}, ...]
+    private static List<Step> compileSequence(JSONArray array, String relay, String duration) throws JSONException {
+        List<Step> steps = new ArrayList<Step>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject item = array.getJSONObject(i);
+            Object payload = item.opt("payload");
+            String payloadText = payload == null ? "" : payload.toString();
+            steps.add(step(normalizeMethod(item.optString("method", "")),
+                    substitute(item.getString("endpoint"), relay, duration),
+                    substitute(payloadText, relay, duration),
+                    Math.max(0, item.optInt("delay_ms", 0)),
+                    "step " + (i + 1)));
+        }
+        if (steps.isEmpty()) {
+            throw new JSONException("no steps");
+        }
+        return Collections.unmodifiableList(steps);
+    }
+
+    private static Step step(String method, String path, String payload, int delayMs, String label) {
+        byte[] body = null;
+        if (!payload.isEmpty() && "POST".equals(method)) {
+            try {
+                body = payload.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always available
+            }
+        }
+        return new Step(method, path, body, delayMs, label);
+    }
+
+    private static String normalizeMethod(String method) {
+        return method.isEmpty() ? "POST" : method.toUpperCase();
+    }
+
+    private static String substitute(String template, String relay, String duration) {
+        return template.replace("{relay}", relay).replace("{duration}", duration);
+    }
+
+    // Adds toggle_after to a Switch.Set style payload ({"id":0,"on":true}); null if the
+    // custom command is anything else
+    private static String toPulsePayload(String endpoint, String payload, int pulseMs) {
+        if (!endpoint.contains("Switch.Set")) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(payload);
+            if (!json.optBoolean("on", false)) {
+                return null;
+            }
+            json.put("toggle_after", pulseMs / 1000.0);
+            return json.toString();
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    // Flips the "on" field of a JSON payload; an empty payload stays empty (GET commands).
+    // Null if the payload is JSON without an "on" flag or not JSON at all.
+    private static String toOffPayload(String payload) {
+        if (payload.isEmpty()) {
+            return payload;
+        }
+        try {
+            JSONObject json = new JSONObject(payload);
+            if (!json.has("on")) {
+                return null;
+            }
+            json.put("on", false);
+            return json.toString();
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
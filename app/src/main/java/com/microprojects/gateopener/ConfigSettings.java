@@ -0,0 +1,102 @@
+package com.microprojects.gateopener;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Shelly and tuning keys of the JSON config, shared by the local file and the network config.
+// Each key present in the config is copied into the app's preferences; keys whose value did
+// not change are left alone, and the connections a key depends on are dropped when it does.
+public class ConfigSettings {
+
+    private static final String TAG = "ConfigSettings";
+    
+    private static final String[] STRING_KEYS = {
+            "shelly_method", "shelly_endpoint", "shelly_payload", "shelly_off_endpoint", "shelly_off_payload",
+            "shelly_username", "shelly_password", "shelly_http_client"
+    };
+    private static final String[] INT_KEYS = {
+            "shelly_relay_id", "shelly_pulse_ms", "shelly_udp_port",
+            "retry_max_attempts", "retry_base_delay_ms", "retry_max_delay_ms",
+            "timeout_floor_ms", "timeout_ceiling_ms"
+    };
+
+    private ConfigSettings() {
+    }
+
+    // Copies the keys present in config into editor; true if any of them changed
+    public static boolean apply(JSONObject config, SharedPreferences prefs, SharedPreferences.Editor editor) throws JSONException {
+        boolean changed = false;
+        
+        if (copyString(config, prefs, editor, "shelly_url")) {
+            ShellyDevice.invalidateAll();
+            ShellyWebSocket.closeAll();
+            ShellyUdpRpc.closeAll();
+            changed = true;
+            Log.d(TAG, "Updated Shelly URL: " + config.getString("shelly_url"));
+        }
+        
+        if (copyString(config, prefs, editor, "shelly_device_id")) {
+            ShellyDiscovery.invalidate();
+            changed = true;
+        }
+        
+        if (copyString(config, prefs, editor, "shelly_transport")) {
+            ShellyWebSocket.closeAll();
+            ShellyUdpRpc.closeAll();
+            changed = true;
+        }
+        
+        if (config.has("shelly_sequence")) {
+            String sequence = config.getJSONArray("shelly_sequence").toString();
+            if (!sequence.equals(prefs.getString("shelly_sequence", null))) {
+                editor.putString("shelly_sequence", sequence);
+                changed = true;
+            }
+        }
+        
+        for (String key : STRING_KEYS) {
+            changed |= copyString(config, prefs, editor, key);
+        }
+        for (String key : INT_KEYS) {
+            changed |= copyInt(config, prefs, editor, key);
+        }
+        
+        if (config.has("retry_jitter")) {
+            float jitter = (float) config.getDouble("retry_jitter");
+            if (!prefs.contains("retry_jitter") || prefs.getFloat("retry_jitter", 0f) != jitter) {
+                editor.putFloat("retry_jitter", jitter);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean copyString(JSONObject config, SharedPreferences prefs, SharedPreferences.Editor editor,
+                                      String key) throws JSONException {
+        if (!config.has(key)) {
+            return false;
+        }
+        String value = config.getString(key);
+        if (value.equals(prefs.getString(key, null))) {
+            return false;
+        }
+        editor.putString(key, value);
+        return true;
+    }
+
+    private static boolean copyInt(JSONObject config, SharedPreferences prefs, SharedPreferences.Editor editor,
+                                   String key) throws JSONException {
+        if (!config.has(key)) {
+            return false;
+        }
+        int value = config.getInt(key);
+        if (prefs.contains(key) && prefs.getInt(key, 0) == value) {
+            return false;
+        }
+        editor.putInt(key, value);
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+package com.microprojects.gateopener;
+
+import android.os.SystemClock;
+
+// Time budget for one gate trigger, shared by every request, retry and wait it makes.
+// Request timeouts are cut to what is left of the budget, and waits return early when
+// the budget runs out, so a trigger ends when the budget does.
+public class Deadline {
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public static Deadline after(long budgetMs) {
+        return new Deadline(SystemClock.elapsedRealtime() + budgetMs);
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, expiresAt - SystemClock.elapsedRealtime());
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() == 0;
+    }
+
+    // Timeout for the next request: maxMs, or less if the budget is nearly spent.
+    // Never returns 0, which would mean "no timeout" to the socket APIs.
+    public int timeoutFor(int maxMs) {
+        return (int) Math.max(1, Math.min(maxMs, remainingMillis()));
+    }
+
+    // Waits up to delayMs; returns false if the budget ran out (or the thread was interrupted) first
+    public boolean sleep(long delayMs) {
+        long now = SystemClock.elapsedRealtime();
+        long wakeAt = now + delayMs;
+        if (now >= expiresAt) {
+            return false;
+        }
+        try {
+            Thread.sleep(Math.min(wakeAt, expiresAt) - now);
+        } catch (InterruptedException e) {
+            // Keep the flag so the caller's later waits end at once as well
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return wakeAt < expiresAt;
+    }
+}
@@ -0,0 +1,138 @@
+package com.microprojects.gateopener;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Health of one route to the relay (an HTTP base URL, or its WebSocket / UDP channel),
+// fed by heartbeats and trigger outcomes and shared by everything that talks to it.
+// It works as a circuit breaker:
+// - closed: requests go through.
+// - open: after FAILURES_TO_OPEN failures in a row the route is known to be dead, and a
+//   trigger skips it or checks it with one cheap probe.
+// - half-open: after the open period one probe decides; success closes the circuit,
+//   failure opens it again for twice as long.
+public class DeviceHealth {
+
+    private static final String TAG = "DeviceHealth";
+    private static final int FAILURES_TO_OPEN = 3;
+    private static final long OPEN_MS = 30000;
+    private static final long MAX_OPEN_MS = 5 * 60 * 1000;
+    // Outcomes kept for the failure rate
+    private static final int WINDOW = 20;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+    
+    private static final Map<String, DeviceHealth> routes = new HashMap<String, DeviceHealth>();
+    
+    private final String route;
+    private final boolean[] outcomes = new boolean[WINDOW];
+    private int outcomeCount;
+    private int outcomePos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long openMs = OPEN_MS;
+    private long lastRttMs = -1;
+
+    private DeviceHealth(String route) {
+        this.route = route;
+    }
+
+    public static synchronized DeviceHealth forRoute(String route) {
+        DeviceHealth health = routes.get(route);
+        if (health == null) {
+            health = new DeviceHealth(route);
+            routes.put(route, health);
+        }
+        return health;
+    }
+
+    public static synchronized void resetAll() {
+        routes.clear();
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && SystemClock.elapsedRealtime() - openedAt >= openMs) {
+            state = State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public boolean isClosed() {
+        return getState() == State.CLOSED;
+    }
+
+    // True while the route is known to be dead and not yet due for a probe
+    public boolean isOpen() {
+        return getState() == State.OPEN;
+    }
+
+    // rttMs < 0 if the round trip was not measured
+    public synchronized void recordSuccess(long rttMs) {
+        record(true);
+        consecutiveFailures = 0;
+        if (rttMs >= 0) {
+            lastRttMs = rttMs;
+        }
+        if (state != State.CLOSED) {
+            Log.d(TAG, route + " circuit closed");
+        }
+        state = State.CLOSED;
+        openMs = OPEN_MS;
+    }
+
+    public synchronized void recordFailure() {
+        record(false);
+        consecutiveFailures++;
+        State current = getState();
+        if (current == State.HALF_OPEN) {
+            // The probe failed, stay away longer this time
+            openMs = Math.min(openMs * 2, MAX_OPEN_MS);
+            open();
+        } else if (current == State.CLOSED && consecutiveFailures >= FAILURES_TO_OPEN) {
+            open();
+        }
+    }
+
+    // Share of failures among the last WINDOW outcomes
+    public synchronized float getFailureRate() {
+        if (outcomeCount == 0) {
+            return 0f;
+        }
+        int failures = 0;
+        for (int i = 0; i < outcomeCount; i++) {
+            if (!outcomes[i]) {
+                failures++;
+            }
+        }
+        return failures / (float) outcomeCount;
+    }
+
+    public synchronized long getLastRttMs() {
+        return lastRttMs;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = SystemClock.elapsedRealtime();
+        Log.w(TAG, route + " circuit open for " + openMs / 1000 + "s after " + consecutiveFailures + " failures");
+    }
+
+    private void record(boolean success) {
+        outcomes[outcomePos] = success;
+        outcomePos = (outcomePos + 1) % WINDOW;
+        if (outcomeCount < WINDOW) {
+            outcomeCount++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getState().name().toLowerCase() + ", " + consecutiveFailures + " failures in a row, "
+                + Math.round(getFailureRate() * 100) + "% of last " + outcomeCount + " failed"
+                + (lastRttMs >= 0 ? ", last RTT " + lastRttMs + " ms" : "");
+    }
+}
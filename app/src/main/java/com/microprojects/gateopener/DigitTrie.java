@@ -0,0 +1,178 @@
+package com.microprojects.gateopener;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+// Digit trie compiled from whitelist rules:
+//   "+32477*"       any number starting with the digits 32477
+//   "+3224561xxxx"  32245610000 to 32245619999 (each x or ? is exactly one digit)
+// Rules and caller numbers are both reduced to their digits, and a leading "00" international
+// prefix is dropped, so "+32477*" also matches a caller shown as 0032477...
+// Unlike exact entries, which compare the last 9 digits, rules cannot tell that a national
+// number (0477...) and an international one (+32477...) are the same without knowing the
+// country code, so a rule only matches callers delivered in the same form; list both forms
+// when the network is not consistent.
+// Immutable after construction; matching walks the number once and does not allocate.
+public class DigitTrie {
+
+    private static final String TAG = "DigitTrie";
+    private static final int MAX_WILDCARD_DIGITS = 30;
+    
+    // children[node * 10 + digit] is the child node, 0 if none (the root is never a child)
+    private int[] children;
+    // Rule ended here with '*'
+    private boolean[] acceptAnyTail;
+    // Bit n set: a rule ends here followed by exactly n 'x' digits
+    private int[] acceptTailLengths;
+    private int nodeCount;
+    private final int ruleCount;
+
+    public DigitTrie(String[] rules) {
+        children = new int[10 * 16];
+        acceptAnyTail = new boolean[16];
+        acceptTailLengths = new int[16];
+        nodeCount = 1;
+        
+        int compiled = 0;
+        for (String rule : rules) {
+            if (addRule(rule)) {
+                compiled++;
+            } else {
+                Log.w(TAG, "Ignoring invalid whitelist rule: " + rule);
+            }
+        }
+        ruleCount = compiled;
+    }
+
+    // '*' always marks a rule; 'x' and '?' only do in an entry made of digits and rule characters,
+    // so free text that happens to contain an x is not mistaken for one
+    public static boolean isRule(String entry) {
+        if (entry.indexOf('*') >= 0) {
+            return true;
+        }
+        boolean wildcard = false;
+        for (int i = 0; i < entry.length(); i++) {
+            char c = entry.charAt(i);
+            if (c == 'x' || c == 'X' || c == '?') {
+                wildcard = true;
+            } else if ((c < '0' || c > '9') && c != '+') {
+                return false;
+            }
+        }
+        return wildcard;
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public boolean matches(CharSequence number) {
+        if (ruleCount == 0 || number == null) {
+            return false;
+        }
+        
+        int start = digitsStart(number);
+        int remaining = 0;
+        for (int i = start; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                remaining++;
+            }
+        }
+        if (remaining == 0) {
+            return false;
+        }
+        
+        int node = 0;
+        for (int i = start; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                continue;
+            }
+            if (acceptsHere(node, remaining)) {
+                return true;
+            }
+            node = children[node * 10 + (c - '0')];
+            if (node == 0) {
+                return false;
+            }
+            remaining--;
+        }
+        return acceptsHere(node, 0);
+    }
+
+    private boolean acceptsHere(int node, int remaining) {
+        return acceptAnyTail[node]
+                || (remaining <= MAX_WILDCARD_DIGITS && (acceptTailLengths[node] & (1 << remaining)) != 0);
+    }
+
+    private boolean addRule(String rule) {
+        int node = 0;
+        int wildcardDigits = 0;
+        boolean anyTail = false;
+        boolean sawDigit = false;
+        
+        for (int i = digitsStart(rule); i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (wildcardDigits > 0 || anyTail) {
+                    return false; // wildcards are only allowed at the end
+                }
+                node = childOf(node, c - '0');
+                sawDigit = true;
+            } else if (c == 'x' || c == 'X' || c == '?') {
+                if (anyTail) {
+                    return false;
+                }
+                wildcardDigits++;
+            } else if (c == '*') {
+                if (anyTail || wildcardDigits > 0) {
+                    return false;
+                }
+                anyTail = true;
+            }
+            // '+', spaces and separators are ignored, as for plain numbers
+        }
+        
+        if (!sawDigit || wildcardDigits > MAX_WILDCARD_DIGITS) {
+            return false;
+        }
+        if (anyTail) {
+            acceptAnyTail[node] = true;
+        } else {
+            acceptTailLengths[node] |= 1 << wildcardDigits;
+        }
+        return true;
+    }
+
+    // Index just past a leading "00" international prefix, which means the same as '+'
+    private static int digitsStart(CharSequence number) {
+        int zeros = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c == '0') {
+                if (++zeros == 2) {
+                    return i + 1;
+                }
+            } else if ((c >= '1' && c <= '9') || c == '+' || c == 'x' || c == 'X' || c == '?' || c == '*') {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private int childOf(int node, int digit) {
+        int index = node * 10 + digit;
+        if (children[index] == 0) {
+            if (nodeCount == acceptAnyTail.length) {
+                int capacity = nodeCount * 2;
+                children = Arrays.copyOf(children, capacity * 10);
+                acceptAnyTail = Arrays.copyOf(acceptAnyTail, capacity);
+                acceptTailLengths = Arrays.copyOf(acceptTailLengths, capacity);
+            }
+            children[index] = nodeCount++;
+        }
+        return children[index];
+    }
+}
@@ -6,14 +6,21 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.BroadcastReceiver;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.v4.app.NotificationCompat;
 
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+
 public class GateOpenerService extends Service {
 
     private static final int NOTIFICATION_ID = 1;
@@ -22,10 +29,27 @@ public class GateOpenerService extends Service {
     private PowerManager.WakeLock wakeLock;
     private WifiManager.WifiLock wifiLock;
     
-    private Handler heartbeatHandler;
-    private static final long KEEPALIVE_INTERVAL_MS = 300000; // Every 5 minutes
+    // Heartbeat and keep-warm run in the heartbeat lane of BackgroundExecutor, behind any gate
+    // trigger. The heartbeat interval starts at the minimum, doubles after every answered ping
+    // up to the maximum, and drops back to the minimum after a failure or a WiFi change, so an
+    // outage is noticed within seconds while a stable link is only pinged every few minutes.
+    // Jitter keeps the pings off a fixed beat.
+    private boolean heartbeatRunning;
+    private ScheduledFuture<?> nextHeartbeat;
+    private ScheduledFuture<?> keepWarmTask;
+    private static final long MIN_KEEPALIVE_INTERVAL_MS = 15000;
+    private static final long KEEPALIVE_INTERVAL_MS = 300000; // Every 5 minutes once stable
+    private static final double KEEPALIVE_JITTER = 0.1;
+    // Lets DHCP and ARP settle after WiFi (re)connects before the first ping
+    private static final long WIFI_SETTLE_MS = 3000;
+    private static final long LATENCY_LOG_INTERVAL_MS = 60 * 60 * 1000;
     private static final int LOG_FAILURE_EVERY_N = 1; // Log every failure
     private int consecutiveFailures = 0;
+    private volatile long keepaliveIntervalMs = MIN_KEEPALIVE_INTERVAL_MS;
+    private long lastLatencyLogAt;
+    private final Random jitter = new Random();
+
+    private BroadcastReceiver wifiReceiver;
 
     public static boolean isRunning() {
         return isRunning;
@@ -36,7 +60,9 @@ public class GateOpenerService extends Service {
         super.onCreate();
         acquireWakeLock();
         acquireWifiLock();
+        ShellyClient.applySettings(this);
         startHeartbeat();
+        registerWifiReceiver();
     }
 
     @Override
@@ -60,7 +86,11 @@ public class GateOpenerService extends Service {
         isRunning = false;
         LocalConfigLoader.getInstance(this).stopWatching();
         NetworkConfigLoader.getInstance(this).stopPeriodicReload();
+        unregisterWifiReceiver();
         stopHeartbeat();
+        ShellyWebSocket.closeAll();
+        ShellyUdpRpc.closeAll();
+        BackgroundExecutor.shutdown();
         releaseWifiLock();
         releaseWakeLock();
         ActivityLogger.log(this, "Service stopped");
@@ -133,46 +163,122 @@ public class GateOpenerService extends Service {
         }
     }
 
-    private void startHeartbeat() {
-        heartbeatHandler = new Handler();
-        heartbeatHandler.postDelayed(heartbeatRunnable, KEEPALIVE_INTERVAL_MS);
+    private synchronized void startHeartbeat() {
+        heartbeatRunning = true;
+        scheduleHeartbeat(MIN_KEEPALIVE_INTERVAL_MS);
+        keepWarmTask = BackgroundExecutor.getInstance().schedulePeriodic(BackgroundExecutor.Lane.HEARTBEAT, "KeepWarm",
+                keepWarmRunnable, ShellyConnection.KEEP_WARM_INTERVAL_MS, ShellyConnection.KEEP_WARM_INTERVAL_MS);
     }
 
-    private void stopHeartbeat() {
-        if (heartbeatHandler != null) {
-            heartbeatHandler.removeCallbacks(heartbeatRunnable);
-            heartbeatHandler = null;
+    private synchronized void stopHeartbeat() {
+        heartbeatRunning = false;
+        if (nextHeartbeat != null) {
+            nextHeartbeat.cancel(false);
+            nextHeartbeat = null;
+        }
+        if (keepWarmTask != null) {
+            keepWarmTask.cancel(false);
+            keepWarmTask = null;
+        }
+    }
+
+    // Replaces the pending heartbeat, so a WiFi change can pull the next ping forward
+    private synchronized void scheduleHeartbeat(long delayMs) {
+        if (!heartbeatRunning) {
+            return;
+        }
+        if (nextHeartbeat != null) {
+            nextHeartbeat.cancel(false);
         }
+        nextHeartbeat = BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.HEARTBEAT, "Heartbeat",
+                heartbeatRunnable, delayMs);
+    }
+
+    private long withJitter(long intervalMs) {
+        return (long) (intervalMs * (1 + KEEPALIVE_JITTER * (2 * jitter.nextDouble() - 1)));
     }
 
     private Runnable heartbeatRunnable = new Runnable() {
         @Override
         public void run() {
-            final Context ctx = GateOpenerService.this;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    String shellyUrl = getSharedPreferences("GateOpenerPrefs", MODE_PRIVATE)
-                            .getString("shelly_url", "");
-                    if (!shellyUrl.isEmpty()) {
-                        boolean reachable = ShellyClient.ping(shellyUrl);
-                        if (reachable) {
-                            if (consecutiveFailures > 0) {
-                                ActivityLogger.log(ctx, "KEEPALIVE: WiFi recovered after " + consecutiveFailures + " failures");
-                            }
-                            consecutiveFailures = 0;
-                        } else {
-                            consecutiveFailures++;
-                            if (consecutiveFailures % LOG_FAILURE_EVERY_N == 1) {
-                                ActivityLogger.log(ctx, "KEEPALIVE: Shelly unreachable (" + consecutiveFailures + ")");
-                            }
+            Context ctx = GateOpenerService.this;
+            try {
+                SharedPreferences prefs = getSharedPreferences("GateOpenerPrefs", MODE_PRIVATE);
+                String shellyUrl = ShellyDiscovery.getShellyUrl(ctx);
+                if (!shellyUrl.isEmpty()) {
+                    // With the WebSocket transport the open channel is the heartbeat
+                    boolean reachable = isWebSocketTransport(prefs)
+                            ? ShellyClient.pingChannel(shellyUrl)
+                            : ShellyClient.ping(shellyUrl);
+                    if (reachable) {
+                        if (consecutiveFailures > 0) {
+                            ActivityLogger.log(ctx, "KEEPALIVE: WiFi recovered after " + consecutiveFailures + " failures");
+                        }
+                        consecutiveFailures = 0;
+                        keepaliveIntervalMs = Math.min(keepaliveIntervalMs * 2, KEEPALIVE_INTERVAL_MS);
+                    } else {
+                        ShellyDiscovery.refresh(ctx);
+                        consecutiveFailures++;
+                        keepaliveIntervalMs = MIN_KEEPALIVE_INTERVAL_MS;
+                        if (consecutiveFailures % LOG_FAILURE_EVERY_N == 1) {
+                            ActivityLogger.log(ctx, "KEEPALIVE: Shelly unreachable (" + consecutiveFailures + ", "
+                                    + ShellyClient.getHealth(shellyUrl) + ")");
                         }
                     }
+                    logLatency(ctx);
                 }
-            }).start();
-            if (heartbeatHandler != null) {
-                heartbeatHandler.postDelayed(this, KEEPALIVE_INTERVAL_MS);
+            } finally {
+                scheduleHeartbeat(withJitter(keepaliveIntervalMs));
+            }
+        }
+    };
+
+    private void logLatency(Context ctx) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastLatencyLogAt >= LATENCY_LOG_INTERVAL_MS && LatencyHistogram.LAST_HOUR.getCount() > 0) {
+            lastLatencyLogAt = now;
+            ActivityLogger.log(ctx, "KEEPALIVE: Shelly latency " + LatencyHistogram.LAST_HOUR.summary());
+        }
+    }
+
+    // Short-interval request that keeps the relay's keep-alive socket from being closed as idle
+    private Runnable keepWarmRunnable = new Runnable() {
+        @Override
+        public void run() {
+            SharedPreferences prefs = getSharedPreferences("GateOpenerPrefs", MODE_PRIVATE);
+            String shellyUrl = ShellyDiscovery.getShellyUrl(GateOpenerService.this);
+            if (isWebSocketTransport(prefs)) {
+                ShellyClient.keepChannelOpen(shellyUrl);
+            } else {
+                ShellyClient.keepWarm(shellyUrl);
             }
         }
     };
+
+    // Any WiFi state change resets the heartbeat to the short interval; a (re)connect also
+    // pings the relay once the link has settled instead of waiting for the next beat
+    private void registerWifiReceiver() {
+        wifiReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                NetworkInfo info = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+                keepaliveIntervalMs = MIN_KEEPALIVE_INTERVAL_MS;
+                if (info != null && info.isConnected()) {
+                    scheduleHeartbeat(WIFI_SETTLE_MS);
+                }
+            }
+        };
+        registerReceiver(wifiReceiver, new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
+    }
+
+    private void unregisterWifiReceiver() {
+        if (wifiReceiver != null) {
+            unregisterReceiver(wifiReceiver);
+            wifiReceiver = null;
+        }
+    }
+
+    private static boolean isWebSocketTransport(SharedPreferences prefs) {
+        return ShellyClient.TRANSPORT_WEBSOCKET.equals(prefs.getString("shelly_transport", ShellyClient.TRANSPORT_HTTP));
+    }
 }
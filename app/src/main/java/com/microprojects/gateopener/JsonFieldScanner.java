@@ -0,0 +1,70 @@
+package com.microprojects.gateopener;
+
+// Pulls single boolean fields ("output", "was_on", "ison") out of a Shelly reply without
+// decoding it to a String or building a JSONObject. The bytes are walked once, strings are
+// skipped as whole tokens, and the scan stops at the first key with that name, whatever
+// its nesting depth. Anything that is not a boolean value counts as not found.
+public class JsonFieldScanner {
+
+    private JsonFieldScanner() {
+    }
+
+    public static Boolean findBoolean(byte[] data, int length, String field) {
+        int i = 0;
+        while (i < length) {
+            if (data[i] != '"') {
+                i++;
+                continue;
+            }
+            
+            // String token; it is a key if a colon follows
+            int start = i + 1;
+            int end = start;
+            while (end < length && data[end] != '"') {
+                if (data[end] == '\\') {
+                    end++;
+                }
+                end++;
+            }
+            if (end >= length) {
+                return null;
+            }
+            int next = skipWhitespace(data, end + 1, length);
+            if (next < length && data[next] == ':' && matches(data, start, end, field)) {
+                int value = skipWhitespace(data, next + 1, length);
+                if (startsWith(data, value, length, "true")) {
+                    return Boolean.TRUE;
+                }
+                if (startsWith(data, value, length, "false")) {
+                    return Boolean.FALSE;
+                }
+                return null;
+            }
+            i = end + 1;
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(byte[] data, int i, int length) {
+        while (i < length && (data[i] == ' ' || data[i] == '\t' || data[i] == '\r' || data[i] == '\n')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean matches(byte[] data, int start, int end, String field) {
+        if (end - start != field.length()) {
+            return false;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            if (data[start + i] != field.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] data, int i, int length, String literal) {
+        return i + literal.length() <= length && matches(data, i, i + literal.length(), literal);
+    }
+}
@@ -0,0 +1,143 @@
+package com.microprojects.gateopener;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+// Ping round trips to the relay in fixed latency buckets, over a rolling window.
+// The window is split into slots; a slot is cleared when the clock comes back around to it,
+// so recording is one increment and a percentile is one pass over the buckets, with no
+// samples kept. Percentiles are bucket upper bounds, precise enough to tell a healthy link
+// (tens of ms) from a struggling one (hundreds). Lost pings are counted separately.
+public class LatencyHistogram {
+
+    // Bucket upper bounds; the last bucket takes everything slower
+    private static final int[] BOUNDS_MS = {5, 10, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000};
+    // Returned by percentile() when it falls in the last bucket
+    public static final int OVERFLOW_MS = Integer.MAX_VALUE;
+    
+    public static final LatencyHistogram LAST_HOUR = new LatencyHistogram("last hour", 60 * 60 * 1000L, 12);
+    public static final LatencyHistogram LAST_DAY = new LatencyHistogram("last day", 24 * 60 * 60 * 1000L, 24);
+    
+    private final String name;
+    private final long slotMs;
+    private final int[][] counts;
+    private final int[] lost;
+    // Index of the slot period each slot currently holds
+    private final long[] periods;
+
+    private LatencyHistogram(String name, long windowMs, int slots) {
+        this.name = name;
+        this.slotMs = windowMs / slots;
+        this.counts = new int[slots][BOUNDS_MS.length + 1];
+        this.lost = new int[slots];
+        this.periods = new long[slots];
+    }
+
+    public static void recordPing(long rttMs) {
+        LAST_HOUR.record(rttMs);
+        LAST_DAY.record(rttMs);
+    }
+
+    public static void recordLoss() {
+        LAST_HOUR.recordLost();
+        LAST_DAY.recordLost();
+    }
+
+    public synchronized void record(long rttMs) {
+        int bucket = 0;
+        while (bucket < BOUNDS_MS.length && rttMs > BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        counts[currentSlot()][bucket]++;
+    }
+
+    public synchronized void recordLost() {
+        lost[currentSlot()]++;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100), -1 without samples
+    public synchronized int percentile(double percent) {
+        int[] totals = totals();
+        int count = 0;
+        for (int total : totals) {
+            count += total;
+        }
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(count * percent / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < totals.length; bucket++) {
+            seen += totals[bucket];
+            if (seen >= rank && totals[bucket] > 0) {
+                return bucket < BOUNDS_MS.length ? BOUNDS_MS[bucket] : OVERFLOW_MS;
+            }
+        }
+        return OVERFLOW_MS;
+    }
+
+    public synchronized int getCount() {
+        int count = 0;
+        for (int total : totals()) {
+            count += total;
+        }
+        return count;
+    }
+
+    public synchronized int getLost() {
+        long period = SystemClock.elapsedRealtime() / slotMs;
+        int total = 0;
+        for (int slot = 0; slot < lost.length; slot++) {
+            if (isLive(slot, period)) {
+                total += lost[slot];
+            }
+        }
+        return total;
+    }
+
+    // "p50 20 ms, p95 75 ms, p99 150 ms (118 pings, 2 lost, last hour)"
+    public synchronized String summary() {
+        int count = getCount();
+        if (count == 0) {
+            return "no pings answered (" + getLost() + " lost, " + name + ")";
+        }
+        return String.format(Locale.US, "p50 %s, p95 %s, p99 %s (%d pings, %d lost, %s)",
+                format(percentile(50)), format(percentile(95)), format(percentile(99)), count, getLost(), name);
+    }
+
+    private static String format(int ms) {
+        return ms == OVERFLOW_MS ? ">" + BOUNDS_MS[BOUNDS_MS.length - 1] + " ms" : ms + " ms";
+    }
+
+    private int currentSlot() {
+        long period = SystemClock.elapsedRealtime() / slotMs;
+        int slot = (int) (period % counts.length);
+        if (periods[slot] != period) {
+            // The slot still holds a period that has left the window
+            periods[slot] = period;
+            lost[slot] = 0;
+            for (int bucket = 0; bucket < counts[slot].length; bucket++) {
+                counts[slot][bucket] = 0;
+            }
+        }
+        return slot;
+    }
+
+    private boolean isLive(int slot, long period) {
+        return period - periods[slot] < counts.length;
+    }
+
+    private int[] totals() {
+        long period = SystemClock.elapsedRealtime() / slotMs;
+        int[] totals = new int[BOUNDS_MS.length + 1];
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (isLive(slot, period)) {
+                for (int bucket = 0; bucket < totals.length; bucket++) {
+                    totals[bucket] += counts[slot][bucket];
+                }
+            }
+        }
+        return totals;
+    }
+}
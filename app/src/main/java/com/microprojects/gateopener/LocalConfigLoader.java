@@ -7,11 +7,14 @@ import android.os.FileObserver;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
 
 public class LocalConfigLoader {
 
@@ -118,54 +121,45 @@ public class LocalConfigLoader {
             JSONObject config = new JSONObject(jsonConfig);
             SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
             SharedPreferences.Editor editor = prefs.edit();
-            boolean changed = false;
-
-            if (config.has("shelly_url")) {
-                String shellyUrl = config.getString("shelly_url");
-                String currentUrl = prefs.getString("shelly_url", "");
-                if (!shellyUrl.equals(currentUrl)) {
-                    editor.putString("shelly_url", shellyUrl);
-                    changed = true;
-                    Log.d(TAG, "Updated Shelly URL: " + shellyUrl);
-                }
-            }
-
-            if (config.has("shelly_method")) {
-                String shellyMethod = config.getString("shelly_method");
-                editor.putString("shelly_method", shellyMethod);
-            }
-
-            if (config.has("shelly_endpoint")) {
-                String shellyEndpoint = config.getString("shelly_endpoint");
-                editor.putString("shelly_endpoint", shellyEndpoint);
-            }
-
-            if (config.has("shelly_payload")) {
-                String shellyPayload = config.getString("shelly_payload");
-                editor.putString("shelly_payload", shellyPayload);
-            }
+            WhitelistManager.Delta whitelistDelta = null;
 
+            boolean changed = ConfigSettings.apply(config, prefs, editor);
+            
             if (config.has("whitelist")) {
                 JSONArray whitelistArray = config.getJSONArray("whitelist");
-                StringBuilder whitelist = new StringBuilder();
+                List<String> numbers = new ArrayList<String>(whitelistArray.length());
+                List<AccessSchedule> schedules = new ArrayList<AccessSchedule>();
                 for (int i = 0; i < whitelistArray.length(); i++) {
-                    if (i > 0) whitelist.append("\n");
-                    whitelist.append(whitelistArray.getString(i));
+                    Object entry = whitelistArray.get(i);
+                    if (AccessSchedule.isScheduleEntry(entry)) {
+                        try {
+                            schedules.add(AccessSchedule.fromJson((JSONObject) entry));
+                        } catch (JSONException e) {
+                            Log.e(TAG, "Invalid scheduled whitelist entry: " + e.getMessage());
+                            ActivityLogger.log(context, "Config: skipped scheduled entry - " + e.getMessage());
+                        }
+                    } else {
+                        numbers.add(whitelistArray.getString(i));
+                    }
                 }
-                String newWhitelist = whitelist.toString();
-                String currentWhitelist = prefs.getString("whitelist", "");
-                if (!newWhitelist.equals(currentWhitelist)) {
-                    editor.putString("whitelist", newWhitelist);
+                whitelistDelta = WhitelistManager.getInstance(context).updateWhitelist(numbers, schedules);
+                if (!whitelistDelta.isEmpty()) {
                     changed = true;
-                    Log.d(TAG, "Updated whitelist with " + whitelistArray.length() + " numbers");
+                    Log.d(TAG, "Updated whitelist " + whitelistDelta);
                 }
             }
 
             editor.apply();
+            // Custom commands are recompiled from the new values on the next trigger
+            CommandTemplate.invalidate();
+            ShellyClient.applySettings(context);
 
             if (changed) {
-                WhitelistManager.getInstance(context).reloadWhitelist();
-                ActivityLogger.log(context, "Config reloaded from local file");
+                if (whitelistDelta != null && !whitelistDelta.isEmpty()) {
+                    ActivityLogger.log(context, "Config reloaded from local file (whitelist " + whitelistDelta + ")");
+                } else {
+                    ActivityLogger.log(context, "Config reloaded from local file");
+                }
             }
 
         } catch (Exception e) {
@@ -18,6 +18,8 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.Arrays;
+
 public class MainActivity extends Activity {
 
     private static final int PERMISSION_REQUEST_CODE = 100;
@@ -143,7 +145,11 @@ public class MainActivity extends Activity {
         String configUsername = prefs.getString("config_username", "");
         String configPassword = prefs.getString("config_password", "");
         String shellyUrl = prefs.getString("shelly_url", "http://192.168.68.80");
-        String whitelist = prefs.getString("whitelist", DEFAULT_WHITELIST);
+        // getInstance moves a whitelist kept in the old preference into the store first
+        WhitelistManager whitelistManager = WhitelistManager.getInstance(this);
+        String whitelist = WhitelistStore.exists(this)
+                ? whitelistManager.getWhitelistText()
+                : prefs.getString("whitelist", DEFAULT_WHITELIST);
         
         configUrlInput.setText(configUrl);
         configUsernameInput.setText(configUsername);
@@ -160,19 +166,34 @@ public class MainActivity extends Activity {
         String configUsername = configUsernameInput.getText().toString().trim();
         String configPassword = configPasswordInput.getText().toString().trim();
         String shellyUrl = shellyUrlInput.getText().toString().trim();
-        String whitelist = whitelistInput.getText().toString().trim();
+        final String whitelist = whitelistInput.getText().toString().trim();
         
         SharedPreferences.Editor editor = prefs.edit();
         editor.putString("config_url", configUrl);
         editor.putString("config_username", configUsername);
         editor.putString("config_password", configPassword);
         editor.putString("shelly_url", shellyUrl);
-        editor.putString("whitelist", whitelist);
         editor.apply();
+        ShellyDevice.invalidateAll();
+        ShellyWebSocket.closeAll();
+        ShellyUdpRpc.closeAll();
         
-        WhitelistManager.getInstance(this).reloadWhitelist();
-        
-        Toast.makeText(this, R.string.settings_saved, Toast.LENGTH_SHORT).show();
+        // Writing the store (fsync) and rebuilding the index is too slow for the UI thread
+        boolean queued = BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.CONFIG, "SaveWhitelist", new Runnable() {
+            @Override
+            public void run() {
+                WhitelistManager.getInstance(MainActivity.this).updateWhitelist(Arrays.asList(whitelist.split("\n")));
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(MainActivity.this, R.string.settings_saved, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        });
+        if (!queued) {
+            Toast.makeText(this, "Busy, whitelist not saved - try again", Toast.LENGTH_SHORT).show();
+        }
     }
 
     private void reloadNetworkConfig() {
@@ -226,7 +247,7 @@ public class MainActivity extends Activity {
         Toast.makeText(this, "Testing connection...", Toast.LENGTH_SHORT).show();
         ActivityLogger.log(MainActivity.this, "Test button pressed - Triggering gate!");
         
-        new Thread(new Runnable() {
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.TRIGGER, "TestTrigger", new Runnable() {
             @Override
             public void run() {
                 final boolean success = ShellyClient.triggerGate(shellyUrl, MainActivity.this);
@@ -243,13 +264,17 @@ public class MainActivity extends Activity {
                     }
                 });
             }
-        }).start();
+        });
     }
 
     private void updateServiceStatus() {
         boolean isRunning = GateOpenerService.isRunning();
         if (isRunning) {
-            statusText.setText(R.string.service_running);
+            String status = getString(R.string.service_running);
+            if (LatencyHistogram.LAST_HOUR.getCount() > 0) {
+                status += "\nShelly latency: " + LatencyHistogram.LAST_HOUR.summary();
+            }
+            statusText.setText(status);
             statusText.setTextColor(0xFF4CAF50);
         } else {
             statusText.setText(R.string.service_stopped);
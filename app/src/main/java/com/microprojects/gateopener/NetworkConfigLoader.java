@@ -7,14 +7,16 @@ import android.os.Looper;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class NetworkConfigLoader {
@@ -24,7 +26,7 @@ public class NetworkConfigLoader {
     
     private static NetworkConfigLoader instance;
     private Context context;
-    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> reloadTask;
     private Handler mainHandler;
 
     private NetworkConfigLoader(Context context) {
@@ -42,25 +44,35 @@ public class NetworkConfigLoader {
     public void startPeriodicReload() {
         stopPeriodicReload();
         
-        scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                loadConfigFromNetwork();
-            }
-        }, 0, RELOAD_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        reloadTask = BackgroundExecutor.getInstance().schedulePeriodic(BackgroundExecutor.Lane.CONFIG, "ConfigReload",
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        reloadNow();
+                    }
+                }, 0, TimeUnit.MINUTES.toMillis(RELOAD_INTERVAL_MINUTES));
         
         Log.d(TAG, "Started periodic config reload every " + RELOAD_INTERVAL_MINUTES + " minutes");
     }
 
     public void stopPeriodicReload() {
-        if (scheduler != null && !scheduler.isShutdown()) {
-            scheduler.shutdown();
-            scheduler = null;
+        if (reloadTask != null) {
+            reloadTask.cancel(false);
+            reloadTask = null;
         }
     }
 
     public void loadConfigFromNetwork() {
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.CONFIG, "ConfigReload", new Runnable() {
+            @Override
+            public void run() {
+                reloadNow();
+            }
+        });
+    }
+
+    // Fetches and applies the config on the calling thread
+    private void reloadNow() {
         SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
         String configUrl = prefs.getString("config_url", "");
         
@@ -69,20 +81,15 @@ public class NetworkConfigLoader {
             return;
         }
         
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String jsonConfig = fetchConfigFromUrl(configUrl);
-                    if (jsonConfig != null) {
-                        parseAndApplyConfig(jsonConfig);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to load config from network: " + e.getMessage());
-                    ActivityLogger.log(context, "Config reload failed: " + e.getMessage());
-                }
+        try {
+            String jsonConfig = fetchConfigFromUrl(configUrl);
+            if (jsonConfig != null) {
+                parseAndApplyConfig(jsonConfig);
             }
-        }).start();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to load config from network: " + e.getMessage());
+            ActivityLogger.log(context, "Config reload failed: " + e.getMessage());
+        }
     }
 
     private String fetchConfigFromUrl(String configUrl) {
@@ -138,46 +145,31 @@ public class NetworkConfigLoader {
             JSONObject config = new JSONObject(jsonConfig);
             SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
             SharedPreferences.Editor editor = prefs.edit();
-            boolean changed = false;
-
-            if (config.has("shelly_url")) {
-                String shellyUrl = config.getString("shelly_url");
-                String currentUrl = prefs.getString("shelly_url", "");
-                if (!shellyUrl.equals(currentUrl)) {
-                    editor.putString("shelly_url", shellyUrl);
-                    changed = true;
-                    Log.d(TAG, "Updated Shelly URL: " + shellyUrl);
-                }
-            }
-
-            if (config.has("shelly_method")) {
-                String shellyMethod = config.getString("shelly_method");
-                editor.putString("shelly_method", shellyMethod);
-            }
-
-            if (config.has("shelly_endpoint")) {
-                String shellyEndpoint = config.getString("shelly_endpoint");
-                editor.putString("shelly_endpoint", shellyEndpoint);
-            }
-
-            if (config.has("shelly_payload")) {
-                String shellyPayload = config.getString("shelly_payload");
-                editor.putString("shelly_payload", shellyPayload);
-            }
+            WhitelistManager.Delta whitelistDelta = null;
 
+            boolean changed = ConfigSettings.apply(config, prefs, editor);
+            
             if (config.has("whitelist")) {
                 JSONArray whitelistArray = config.getJSONArray("whitelist");
-                StringBuilder whitelist = new StringBuilder();
+                List<String> numbers = new ArrayList<String>(whitelistArray.length());
+                List<AccessSchedule> schedules = new ArrayList<AccessSchedule>();
                 for (int i = 0; i < whitelistArray.length(); i++) {
-                    if (i > 0) whitelist.append("\n");
-                    whitelist.append(whitelistArray.getString(i));
+                    Object entry = whitelistArray.get(i);
+                    if (AccessSchedule.isScheduleEntry(entry)) {
+                        try {
+                            schedules.add(AccessSchedule.fromJson((JSONObject) entry));
+                        } catch (JSONException e) {
+                            Log.e(TAG, "Invalid scheduled whitelist entry: " + e.getMessage());
+                            ActivityLogger.log(context, "Config: skipped scheduled entry - " + e.getMessage());
+                        }
+                    } else {
+                        numbers.add(whitelistArray.getString(i));
+                    }
                 }
-                String newWhitelist = whitelist.toString();
-                String currentWhitelist = prefs.getString("whitelist", "");
-                if (!newWhitelist.equals(currentWhitelist)) {
-                    editor.putString("whitelist", newWhitelist);
+                whitelistDelta = WhitelistManager.getInstance(context).updateWhitelist(numbers, schedules);
+                if (!whitelistDelta.isEmpty()) {
                     changed = true;
-                    Log.d(TAG, "Updated whitelist with " + whitelistArray.length() + " numbers");
+                    Log.d(TAG, "Updated whitelist " + whitelistDelta);
                 }
             }
 
@@ -187,10 +179,16 @@ public class NetworkConfigLoader {
             }
 
             editor.apply();
+            // Custom commands are recompiled from the new values on the next trigger
+            CommandTemplate.invalidate();
+            ShellyClient.applySettings(context);
 
             if (changed) {
-                WhitelistManager.getInstance(context).reloadWhitelist();
-                ActivityLogger.log(context, "Config reloaded from network");
+                if (whitelistDelta != null && !whitelistDelta.isEmpty()) {
+                    ActivityLogger.log(context, "Config reloaded from network (whitelist " + whitelistDelta + ")");
+                } else {
+                    ActivityLogger.log(context, "Config reloaded from network");
+                }
             }
 
         } catch (Exception e) {
@@ -0,0 +1,72 @@
+package com.microprojects.gateopener;
+
+// Bloom filter over PhoneNumberSet keys. A negative answer is definite, so callers that
+// are not on the whitelist can be turned away after a few bit probes.
+// Immutable after construction.
+public class NumberBloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7; // ~ln(2) * BITS_PER_KEY
+    
+    private final long[] bits;
+    private final int bitMask;
+    private final int keyCount;
+
+    public NumberBloomFilter(long[] keys, int count) {
+        int numBits = 64;
+        while (numBits < count * BITS_PER_KEY && numBits < (1 << 30)) {
+            numBits <<= 1;
+        }
+        bits = new long[numBits >>> 6];
+        bitMask = numBits - 1;
+        keyCount = count;
+        
+        for (int i = 0; i < count; i++) {
+            long key = keys[i];
+            long h1 = mix(key);
+            long h2 = mix(key ^ 0x9e3779b97f4a7c15L) | 1;
+            for (int k = 0; k < HASH_COUNT; k++) {
+                int bit = (int) (h1 + k * h2) & bitMask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    public boolean mightContain(long key) {
+        if (key == PhoneNumberSet.NO_KEY) {
+            return false;
+        }
+        long h1 = mix(key);
+        long h2 = mix(key ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int k = 0; k < HASH_COUNT; k++) {
+            int bit = (int) (h1 + k * h2) & bitMask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getBitCount() {
+        return bits.length * 64;
+    }
+
+    public int getHashCount() {
+        return HASH_COUNT;
+    }
+
+    // Theoretical false-positive rate for the number of keys inserted: (1 - e^(-kn/m))^k
+    public double getExpectedFalsePositiveRate() {
+        double fill = 1 - Math.exp(-(double) HASH_COUNT * keyCount / getBitCount());
+        return Math.pow(fill, HASH_COUNT);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
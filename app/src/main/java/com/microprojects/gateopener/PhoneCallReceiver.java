@@ -30,11 +30,14 @@ public class PhoneCallReceiver extends BroadcastReceiver {
                 return;
             }
             
-            boolean isWhitelisted = WhitelistManager.getInstance(context).isWhitelisted(incomingNumber);
+            WhitelistManager.Access access = WhitelistManager.getInstance(context).checkAccess(incomingNumber);
             
-            if (isWhitelisted) {
+            if (access == WhitelistManager.Access.ALLOWED) {
                 rejectCall(context);
                 triggerGateInBackground(context, incomingNumber);
+            } else if (access == WhitelistManager.Access.DENIED_BY_SCHEDULE) {
+                ActivityLogger.log(context, incomingNumber + " - OUTSIDE SCHEDULE - REJECTED");
+                rejectCall(context);
             } else {
                 ActivityLogger.log(context, incomingNumber + " - UNKNOWN - REJECTED");
                 rejectCall(context);
@@ -42,15 +45,15 @@ public class PhoneCallReceiver extends BroadcastReceiver {
         }
     }
 
-    private static final int GATE_TRIGGER_ROUNDS = 3;
-    private static final long ROUND_DELAY_MS = 3000;
+    // Pause before the next round; rounds run until the budget is spent or a failure that another
+    // round cannot fix (bad credentials, relay known to be down, wrong API)
+    private static final long ROUND_DELAY_MS = 1000;
 
     private void triggerGateInBackground(final Context context, final String phoneNumber) {
-        new Thread(new Runnable() {
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.TRIGGER, "Trigger", new Runnable() {
             @Override
             public void run() {
-                String shellyUrl = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE)
-                        .getString("shelly_url", "");
+                String shellyUrl = ShellyDiscovery.getShellyUrl(context);
                 
                 if (shellyUrl.isEmpty()) {
                     ActivityLogger.log(context, phoneNumber + " - WHITELISTED - FAILURE (Shelly URL not configured)");
@@ -59,29 +62,54 @@ public class PhoneCallReceiver extends BroadcastReceiver {
                 
                 StringBuilder errorDetails = new StringBuilder();
                 boolean success = false;
+                Deadline deadline = Deadline.after(ShellyClient.DEFAULT_TRIGGER_BUDGET_MS);
+                
+                DeviceHealth health = ShellyClient.getHealth(shellyUrl);
+                if (health.isOpen()) {
+                    // Heartbeats already found the relay unreachable, start recovering WiFi and
+                    // looking the relay up now rather than after the first round times out
+                    errorDetails.append("[Relay ").append(health).append("] ");
+                    reassociateWifi(context);
+                    ShellyDiscovery.refresh(context);
+                }
                 
-                for (int round = 1; round <= GATE_TRIGGER_ROUNDS && !success; round++) {
+                RetryPolicy.Failure failure = null;
+                for (int round = 1; !success && !deadline.isExpired(); round++) {
                     if (round > 1) {
-                        // Try to wake up WiFi before retry
-                        reassociateWifi(context);
-                        try {
-                            Thread.sleep(ROUND_DELAY_MS);
-                        } catch (InterruptedException e) {
+                        if (failure == RetryPolicy.Failure.TRANSIENT_NETWORK) {
+                            // Try to wake up WiFi before retry
+                            reassociateWifi(context);
+                        }
+                        if (!deadline.sleep(ROUND_DELAY_MS)) {
                             break;
                         }
                         errorDetails.append(" [Round ").append(round).append("] ");
+                        // The relay may have been found at a new address in the meantime
+                        shellyUrl = ShellyDiscovery.getShellyUrl(context);
+                    }
+                    failure = ShellyClient.trigger(shellyUrl, context, errorDetails, deadline);
+                    success = failure == null;
+                    if (!success && !failure.retryable) {
+                        errorDetails.append(" [Not retrying after ").append(failure).append(" failure] ");
+                        break;
+                    }
+                    if (failure == RetryPolicy.Failure.TRANSIENT_NETWORK) {
+                        // Look the relay up again while WiFi reassociates, in case its address changed
+                        ShellyDiscovery.refresh(context);
                     }
-                    success = ShellyClient.triggerGate(shellyUrl, context, errorDetails);
                 }
                 
                 if (success) {
                     ActivityLogger.log(context, phoneNumber + " - WHITELISTED - SUCCESS");
                 } else {
+                    if (deadline.isExpired()) {
+                        errorDetails.append(" [Gave up after ").append(ShellyClient.DEFAULT_TRIGGER_BUDGET_MS / 1000).append("s] ");
+                    }
                     String wifiInfo = getWifiInfo(context);
                     ActivityLogger.log(context, phoneNumber + " - WHITELISTED - FAILURE | " + errorDetails.toString() + " | " + wifiInfo);
                 }
             }
-        }).start();
+        });
     }
 
     private void reassociateWifi(Context context) {
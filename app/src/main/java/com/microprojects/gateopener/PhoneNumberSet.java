@@ -0,0 +1,223 @@
+package com.microprojects.gateopener;
+
+// Open-addressing hash set of phone numbers packed into longs.
+// A number is encoded as its digits behind a leading 1 (so "0471" becomes 10471),
+// which keeps leading zeros and the length without boxing or a String per entry.
+// Not thread-safe: build it completely, then publish it.
+public class PhoneNumberSet {
+
+    public static final long NO_KEY = 0L;
+    public static final int MAX_DIGITS = 18;
+    
+    private static final int MIN_CAPACITY = 16;
+    
+    private long[] table;
+    // Optional per-key reference counts, for indexes where several numbers share a key
+    private int[] counts;
+    private int mask;
+    private int size;
+
+    public PhoneNumberSet() {
+        this(0);
+    }
+
+    public PhoneNumberSet(int expectedSize) {
+        this(expectedSize, false);
+    }
+
+    public PhoneNumberSet(int expectedSize, boolean counting) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        table = new long[capacity];
+        counts = counting ? new int[capacity] : null;
+        mask = capacity - 1;
+    }
+
+    private PhoneNumberSet(PhoneNumberSet other) {
+        table = other.table.clone();
+        counts = other.counts != null ? other.counts.clone() : null;
+        mask = other.mask;
+        size = other.size;
+    }
+
+    public PhoneNumberSet copy() {
+        return new PhoneNumberSet(this);
+    }
+
+    public boolean add(long key) {
+        if (key == NO_KEY) {
+            return false;
+        }
+        if ((size + 1) * 2 > table.length) {
+            resize(table.length << 1);
+        }
+        int slot = mix(key) & mask;
+        while (table[slot] != NO_KEY) {
+            if (table[slot] == key) {
+                if (counts != null) {
+                    counts[slot]++;
+                }
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = key;
+        if (counts != null) {
+            counts[slot] = 1;
+        }
+        size++;
+        return true;
+    }
+
+    // Returns true if the key is no longer in the set afterwards.
+    // In a counting set the key stays until it has been removed as often as it was added.
+    public boolean remove(long key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return false;
+        }
+        if (counts != null && --counts[slot] > 0) {
+            return false;
+        }
+        
+        // Backward-shift deletion keeps every probe chain unbroken without tombstones
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != NO_KEY) {
+            int home = mix(table[next]) & mask;
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                table[hole] = table[next];
+                if (counts != null) {
+                    counts[hole] = counts[next];
+                }
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = NO_KEY;
+        if (counts != null) {
+            counts[hole] = 0;
+        }
+        size--;
+        return true;
+    }
+
+    public boolean contains(long key) {
+        return slotOf(key) >= 0;
+    }
+
+    private int slotOf(long key) {
+        if (key == NO_KEY) {
+            return -1;
+        }
+        int slot = mix(key) & mask;
+        long current;
+        while ((current = table[slot]) != NO_KEY) {
+            if (current == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] oldTable = table;
+        int[] oldCounts = counts;
+        table = new long[capacity];
+        counts = oldCounts != null ? new int[capacity] : null;
+        mask = capacity - 1;
+        for (int i = 0; i < oldTable.length; i++) {
+            long key = oldTable[i];
+            if (key != NO_KEY) {
+                int slot = mix(key) & mask;
+                while (table[slot] != NO_KEY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = key;
+                if (counts != null) {
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    // Packs every digit of the number, ignoring '+', spaces and separators.
+    // Only the last MAX_DIGITS digits are kept, which is longer than any E.164 number.
+    public static long encode(CharSequence number) {
+        return encodeTail(number, MAX_DIGITS, false);
+    }
+
+    // Packs the last suffixLength digits, or returns NO_KEY if the number is shorter.
+    public static long encodeSuffix(CharSequence number, int suffixLength) {
+        return encodeTail(number, suffixLength, true);
+    }
+
+    private static long encodeTail(CharSequence number, int length, boolean exact) {
+        if (number == null) {
+            return NO_KEY;
+        }
+        int digitCount = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digitCount++;
+            }
+        }
+        if (digitCount == 0 || (exact && digitCount < length)) {
+            return NO_KEY;
+        }
+        
+        int skip = Math.max(0, digitCount - length);
+        long key = 1;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    key = key * 10 + (c - '0');
+                }
+            }
+        }
+        return key;
+    }
+
+    // Same result as encodeSuffix on the decoded number, without going through a String
+    public static long suffixKey(long key, int suffixLength) {
+        if (key == NO_KEY) {
+            return NO_KEY;
+        }
+        long limit = 1;
+        for (int i = 0; i < suffixLength; i++) {
+            limit *= 10;
+        }
+        // With the leading 1, a number of exactly suffixLength digits lies in [limit, 10 * limit)
+        if (key < limit) {
+            return NO_KEY;
+        }
+        return limit + key % limit;
+    }
+
+    public static String decode(long key) {
+        if (key == NO_KEY) {
+            return "";
+        }
+        // Drop the leading 1 that marks the length
+        return Long.toString(key).substring(1);
+    }
+}
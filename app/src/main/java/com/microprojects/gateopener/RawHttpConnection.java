@@ -0,0 +1,336 @@
+package com.microprojects.gateopener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bare HTTP/1.1 over a plain socket, for the short GET / POST requests a relay command needs.
+// The device address is resolved once, the socket is kept open with TCP_NODELAY, request
+// heads are encoded once per method and path, and responses are parsed in one reused buffer.
+// Only http:// is supported. One request at a time; tryLock() tells a caller it is busy.
+public class RawHttpConnection {
+
+    private static final int MAX_CACHED_HEADS = 32;
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, byte[]> requestHeads = new HashMap<String, byte[]>();
+    private InetSocketAddress address;
+    private volatile Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    // Response bytes; data between readPos and readLimit has been received but not parsed yet
+    private byte[] buffer = new byte[2048];
+    private int readPos;
+    private int readLimit;
+
+    public RawHttpConnection(String baseUrl) throws IOException {
+        URL url = new URL(baseUrl);
+        if (!"http".equals(url.getProtocol())) {
+            throw new IOException("Raw HTTP needs an http:// URL");
+        }
+        host = url.getHost();
+        port = url.getPort() != -1 ? url.getPort() : 80;
+        hostHeader = port == 80 ? host : host + ":" + port;
+    }
+
+    public boolean tryLock() {
+        return lock.tryLock();
+    }
+
+    public void unlock() {
+        lock.unlock();
+    }
+
+    // Opens the socket if needed; kept apart from exchange() so the handshake can be timed separately
+    public void connect(int timeoutMs) throws IOException {
+        if (socket != null) {
+            return;
+        }
+        if (address == null || address.isUnresolved()) {
+            address = new InetSocketAddress(host, port);
+        }
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            s.connect(address, timeoutMs);
+            in = s.getInputStream();
+            out = s.getOutputStream();
+            socket = s;
+        } catch (IOException e) {
+            s.close();
+            // Resolve again next time, the device may have a new address
+            address = null;
+            throw e;
+        }
+    }
+
+    // Sends one request on the connected socket and reads the whole response
+    public ShellyConnection.Response exchange(String method, String path, String contentType, String authorization,
+            byte[] body, int timeoutMs) throws IOException {
+        try {
+            socket.setSoTimeout(timeoutMs);
+            readPos = 0;
+            readLimit = 0;
+            try {
+                writeRequest(method, path, contentType, authorization, body);
+            } catch (IOException e) {
+                throw new ShellyConnection.UnsentRequestException(e);
+            }
+            return readResponse();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Closes the socket from another thread; the request using it fails at once and cleans up
+    public void abort() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    private void writeRequest(String method, String path, String contentType, String authorization, byte[] body) throws IOException {
+        byte[] head = requestHead(method, path, contentType);
+        // The Authorization header changes with every request, so it is not part of the cached head
+        String tailText = authorization != null ? "Authorization: " + authorization + "\r\n" : "";
+        tailText += body != null ? "Content-Length: " + body.length + "\r\n\r\n" : "\r\n";
+        byte[] tail = tailText.getBytes("US-ASCII");
+        int bodyLength = body != null ? body.length : 0;
+        
+        // One write, so the request leaves in as few segments as possible
+        byte[] request = new byte[head.length + tail.length + bodyLength];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(tail, 0, request, head.length, tail.length);
+        if (body != null) {
+            System.arraycopy(body, 0, request, head.length + tail.length, bodyLength);
+        }
+        out.write(request);
+        out.flush();
+    }
+
+    private byte[] requestHead(String method, String path, String contentType) throws IOException {
+        String key = method + " " + path + " " + contentType;
+        byte[] head = requestHeads.get(key);
+        if (head == null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(hostHeader).append("\r\n");
+            sb.append("Connection: keep-alive\r\n");
+            if (contentType != null) {
+                sb.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            head = sb.toString().getBytes("US-ASCII");
+            if (requestHeads.size() >= MAX_CACHED_HEADS) {
+                requestHeads.clear();
+            }
+            requestHeads.put(key, head);
+        }
+        return head;
+    }
+
+    private ShellyConnection.Response readResponse() throws IOException {
+        String statusLine = readLine();
+        int code = parseStatus(statusLine);
+        while (code >= 100 && code < 200) {
+            // Interim response (100 Continue); its headers are skipped and the final one follows
+            while (!readLine().isEmpty()) {
+                // Skip
+            }
+            statusLine = readLine();
+            code = parseStatus(statusLine);
+        }
+        
+        int contentLength = -1;
+        boolean chunked = false;
+        boolean closeAfter = statusLine.startsWith("HTTP/1.0");
+        String challenge = null;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad Content-Length: " + value);
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                closeAfter = value.equalsIgnoreCase("close");
+            } else if (name.equalsIgnoreCase("WWW-Authenticate")) {
+                challenge = value;
+            }
+        }
+        
+        byte[] body;
+        if (code == 204 || code == 304) {
+            // Never has a body, whatever the headers say; reading to the end would wait for a timeout
+            body = new byte[0];
+        } else if (chunked) {
+            body = readChunked();
+        } else if (contentLength >= 0) {
+            body = readBody(contentLength);
+        } else {
+            // No length: the body runs until the device closes the connection
+            body = readToEnd();
+            closeAfter = true;
+        }
+        
+        if (closeAfter) {
+            close();
+        }
+        return new ShellyConnection.Response(code, body, body.length, challenge);
+    }
+
+    // "HTTP/1.1 200 OK"
+    private static int parseStatus(String statusLine) throws IOException {
+        int space = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || space < 0 || statusLine.length() < space + 4) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+    }
+
+    private byte[] readChunked() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine();
+            int semicolon = sizeLine.indexOf(';');
+            if (semicolon >= 0) {
+                sizeLine = sizeLine.substring(0, semicolon);
+            }
+            int size;
+            try {
+                size = Integer.parseInt(sizeLine.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + sizeLine);
+            }
+            if (size == 0) {
+                // Trailers, then the empty line
+                while (!readLine().isEmpty()) {
+                    // Skip
+                }
+                return body.toByteArray();
+            }
+            body.write(readBody(size));
+            if (body.size() > MAX_RESPONSE_BYTES) {
+                throw new IOException("Response too large");
+            }
+            readLine();
+        }
+    }
+
+    private byte[] readBody(int length) throws IOException {
+        if (length > MAX_RESPONSE_BYTES) {
+            throw new IOException("Response too large");
+        }
+        while (readLimit - readPos < length) {
+            if (!fill()) {
+                throw new IOException("Connection closed mid-response");
+            }
+        }
+        byte[] body = Arrays.copyOfRange(buffer, readPos, readPos + length);
+        readPos += length;
+        return body;
+    }
+
+    private byte[] readToEnd() throws IOException {
+        while (fill()) {
+            if (readLimit - readPos > MAX_RESPONSE_BYTES) {
+                throw new IOException("Response too large");
+            }
+        }
+        byte[] body = Arrays.copyOfRange(buffer, readPos, readLimit);
+        readPos = readLimit;
+        return body;
+    }
+
+    // Reads one CRLF-terminated header line, without the terminator
+    private String readLine() throws IOException {
+        // Bytes already scanned, counted from readPos because fill() may move the pending data
+        int scanned = 0;
+        while (true) {
+            for (int i = readPos + scanned; i < readLimit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i > readPos && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, readPos, end - readPos, "US-ASCII");
+                    readPos = i + 1;
+                    return line;
+                }
+            }
+            scanned = readLimit - readPos;
+            if (!fill()) {
+                throw new IOException("Connection closed mid-response");
+            }
+        }
+    }
+
+    // Reads more bytes into the buffer, compacting or growing it first; false at end of stream
+    private boolean fill() throws IOException {
+        if (readPos == readLimit) {
+            readPos = 0;
+            readLimit = 0;
+        } else if (readLimit == buffer.length) {
+            int pending = readLimit - readPos;
+            if (readPos > 0) {
+                System.arraycopy(buffer, readPos, buffer, 0, pending);
+            } else {
+                if (buffer.length >= MAX_RESPONSE_BYTES) {
+                    throw new IOException("Response too large");
+                }
+                byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, pending);
+                buffer = larger;
+            }
+            readPos = 0;
+            readLimit = pending;
+        }
+        int n = in.read(buffer, readLimit, buffer.length - readLimit);
+        if (n == -1) {
+            return false;
+        }
+        readLimit += n;
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+package com.microprojects.gateopener;
+
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Random;
+
+// Decides whether a failed Shelly request is worth repeating, and after how long.
+// Failures are classified first, so a request that can never succeed (wrong API, bad
+// credentials) is not retried, and retryable ones back off exponentially with jitter.
+// Tunable from the JSON config: retry_max_attempts, retry_base_delay_ms,
+// retry_max_delay_ms, retry_jitter.
+public class RetryPolicy {
+
+    public enum Failure {
+        // Timeouts, resets, refused or unroutable connections: WiFi or the device is flaky
+        TRANSIENT_NETWORK(true),
+        // 404 or a reply that does not fit the API: try the other protocol instead
+        WRONG_PROTOCOL(false),
+        // 401 / 403: repeating the same credentials will not help
+        AUTH(false),
+        // 429 / 5xx: the device is up but busy or rebooting its RPC stack
+        DEVICE_BUSY(true),
+        // The circuit breaker is open and its probe failed: the relay is known to be down,
+        // and another round within the same call will not bring it back
+        UNREACHABLE(false),
+        // Anything else (bad URL, unexpected HTTP status)
+        PERMANENT(false);
+        
+        public final boolean retryable;
+        
+        Failure(boolean retryable) {
+            this.retryable = retryable;
+        }
+    }
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_BASE_DELAY_MS = 200;
+    public static final int DEFAULT_MAX_DELAY_MS = 2000;
+    public static final float DEFAULT_JITTER = 0.5f;
+    
+    public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS,
+            DEFAULT_MAX_DELAY_MS, DEFAULT_JITTER);
+    
+    private static final Random random = new Random();
+    
+    public final int maxAttempts;
+    public final int baseDelayMs;
+    public final int maxDelayMs;
+    public final float jitter;
+
+    public RetryPolicy(int maxAttempts, int baseDelayMs, int maxDelayMs, float jitter) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = Math.max(0, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.jitter = Math.max(0f, Math.min(1f, jitter));
+    }
+
+    public static RetryPolicy fromPrefs(SharedPreferences prefs) {
+        return new RetryPolicy(
+                prefs.getInt("retry_max_attempts", DEFAULT_MAX_ATTEMPTS),
+                prefs.getInt("retry_base_delay_ms", DEFAULT_BASE_DELAY_MS),
+                prefs.getInt("retry_max_delay_ms", DEFAULT_MAX_DELAY_MS),
+                prefs.getFloat("retry_jitter", DEFAULT_JITTER));
+    }
+
+    // True if another attempt should be made after the given (1-based) attempt failed
+    public boolean shouldRetry(Failure failure, int attempt) {
+        return failure.retryable && attempt < maxAttempts;
+    }
+
+    // Delay before the attempt after the given (1-based) one: base * 2^(attempt-1), capped,
+    // then reduced by up to the jitter fraction so retries from both legs do not align
+    public long backoffMs(int attempt) {
+        long delay = baseDelayMs;
+        for (int i = 1; i < attempt && delay < maxDelayMs; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMs);
+        synchronized (random) {
+            return delay - (long) (delay * jitter * random.nextFloat());
+        }
+    }
+
+    public static Failure classify(Exception e) {
+        if (e instanceof MalformedURLException) {
+            return Failure.PERMANENT;
+        }
+        // Timeouts, refused / reset / unroutable connections and DNS failures all tend to
+        // clear up with the WiFi link
+        if (e instanceof IOException) {
+            return Failure.TRANSIENT_NETWORK;
+        }
+        return Failure.PERMANENT;
+    }
+
+    public static Failure classify(int httpCode) {
+        if (httpCode == 401 || httpCode == 403) {
+            return Failure.AUTH;
+        }
+        if (httpCode == 404 || httpCode == 400 || httpCode == 405) {
+            return Failure.WRONG_PROTOCOL;
+        }
+        if (httpCode == 429 || httpCode >= 500) {
+            return Failure.DEVICE_BUSY;
+        }
+        return Failure.PERMANENT;
+    }
+
+    @Override
+    public String toString() {
+        return maxAttempts + " attempts, backoff " + baseDelayMs + "-" + maxDelayMs + " ms, jitter " + jitter;
+    }
+}
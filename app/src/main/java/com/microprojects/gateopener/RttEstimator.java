@@ -0,0 +1,90 @@
+package com.microprojects.gateopener;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Round-trip time estimate for one Shelly device, kept the way TCP does it (RFC 6298):
+// a smoothed RTT and its mean deviation, updated from every answered request, give a
+// retransmission timeout of SRTT + 4 * RTTVAR. Request timeouts are derived from it, so a
+// relay that answers in 30 ms is retried after a few hundred ms instead of after 5 s.
+// Each timeout doubles the value until the next answer, in case the device really got slow.
+// Bounds are configurable: timeout_floor_ms, timeout_ceiling_ms.
+public class RttEstimator {
+
+    public static final int DEFAULT_FLOOR_MS = 300;
+    public static final int DEFAULT_CEILING_MS = 5000;
+    // Clock granularity term, keeps RTO above SRTT when the variance is near zero
+    private static final int GRANULARITY_MS = 10;
+    private static final int MAX_BACKOFF = 16;
+    
+    private static final Map<String, RttEstimator> estimators = new HashMap<String, RttEstimator>();
+    
+    private static volatile int floorMs = DEFAULT_FLOOR_MS;
+    private static volatile int ceilingMs = DEFAULT_CEILING_MS;
+    
+    private long smoothedRtt = -1;
+    private long rttVariance;
+    private long lastSample = -1;
+    private int backoff = 1;
+    private int samples;
+
+    private RttEstimator() {
+    }
+
+    public static synchronized RttEstimator forUrl(String baseUrl) {
+        RttEstimator estimator = estimators.get(baseUrl);
+        if (estimator == null) {
+            estimator = new RttEstimator();
+            estimators.put(baseUrl, estimator);
+        }
+        return estimator;
+    }
+
+    public static synchronized void resetAll() {
+        estimators.clear();
+    }
+
+    public static void setBounds(int floor, int ceiling) {
+        floorMs = Math.max(1, floor);
+        ceilingMs = Math.max(floorMs, ceiling);
+    }
+
+    public synchronized void record(long rttMs) {
+        if (rttMs < 0) {
+            return;
+        }
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttMs;
+            rttVariance = rttMs / 2;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, then SRTT = 7/8 SRTT + 1/8 R
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rttMs)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rttMs) / 8;
+        }
+        lastSample = rttMs;
+        backoff = 1;
+        samples++;
+    }
+
+    public synchronized void onTimeout() {
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    // Timeout for the next request; the ceiling until the device has answered once
+    public synchronized int timeoutMs() {
+        if (smoothedRtt < 0) {
+            return ceilingMs;
+        }
+        long rto = (smoothedRtt + Math.max(GRANULARITY_MS, 4 * rttVariance)) * backoff;
+        return (int) Math.max(floorMs, Math.min(ceilingMs, rto));
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (smoothedRtt < 0) {
+            return "no samples, timeout " + timeoutMs() + " ms";
+        }
+        return "srtt " + smoothedRtt + " ms, rttvar " + rttVariance + " ms, last " + lastSample
+                + " ms, timeout " + timeoutMs() + " ms (" + samples + " samples)";
+    }
+}
@@ -0,0 +1,269 @@
+package com.microprojects.gateopener;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Credentials for password-protected Shelly devices (shelly_username / shelly_password).
+// Gen2+ devices use HTTP digest auth with SHA-256, and the same digest inside the "auth"
+// object of JSON-RPC requests on the WebSocket and UDP channels; Gen1 devices use Basic.
+// The last challenge (realm, nonce) is kept per device and the answer is computed before
+// sending, so only the first request, or the first after the device rotates its nonce,
+// costs a 401 round trip.
+public class ShellyAuth {
+
+    private static final String TAG = "ShellyAuth";
+    public static final String DEFAULT_USERNAME = "admin";
+    
+    private static final Map<String, ShellyAuth> devices = new HashMap<String, ShellyAuth>();
+    private static final SecureRandom random = new SecureRandom();
+    
+    private static volatile String username = DEFAULT_USERNAME;
+    private static volatile String password = "";
+    
+    // Last HTTP challenge
+    private boolean basic;
+    private String realm;
+    private String nonce;
+    private String opaque;
+    private String algorithm;
+    private boolean qopAuth;
+    private int nonceCount;
+    // Last JSON-RPC challenge; its nonce is a number
+    private String rpcRealm;
+    private long rpcNonce;
+    // Cached H(username:realm:password), valid for ha1Key (algorithm and realm)
+    private String ha1;
+    private String ha1Key;
+
+    private ShellyAuth() {
+    }
+
+    public static synchronized ShellyAuth forUrl(String baseUrl) {
+        ShellyAuth auth = devices.get(baseUrl);
+        if (auth == null) {
+            auth = new ShellyAuth();
+            devices.put(baseUrl, auth);
+        }
+        return auth;
+    }
+
+    public static synchronized void setCredentials(String user, String pass) {
+        user = user == null || user.isEmpty() ? DEFAULT_USERNAME : user;
+        pass = pass == null ? "" : pass;
+        if (!user.equals(username) || !pass.equals(password)) {
+            username = user;
+            password = pass;
+            for (ShellyAuth auth : devices.values()) {
+                auth.reset();
+            }
+        }
+    }
+
+    public static boolean hasCredentials() {
+        return !password.isEmpty();
+    }
+
+    private synchronized void reset() {
+        basic = false;
+        nonce = null;
+        rpcRealm = null;
+        ha1 = null;
+        ha1Key = null;
+    }
+
+    public synchronized boolean hasChallenge() {
+        return basic || nonce != null || rpcRealm != null;
+    }
+
+    // Authorization header for an HTTP request, or null if no challenge has been seen yet
+    public synchronized String authorizationHeader(String method, String uri) {
+        if (!hasCredentials()) {
+            return null;
+        }
+        if (basic) {
+            try {
+                return "Basic " + Base64.encodeToString((username + ":" + password).getBytes("UTF-8"), Base64.NO_WRAP);
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        if (nonce == null) {
+            return null;
+        }
+        String ha2 = hash(algorithm, method + ":" + uri);
+        String cnonce = Long.toHexString(random.nextLong());
+        String nc = String.format(Locale.US, "%08x", ++nonceCount);
+        String response = qopAuth
+                ? hash(algorithm, getHa1(algorithm, realm) + ":" + nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2)
+                : hash(algorithm, getHa1(algorithm, realm) + ":" + nonce + ":" + ha2);
+        
+        StringBuilder header = new StringBuilder("Digest ");
+        header.append("username=\"").append(username).append("\", ");
+        header.append("realm=\"").append(realm).append("\", ");
+        header.append("nonce=\"").append(nonce).append("\", ");
+        header.append("uri=\"").append(uri).append("\", ");
+        header.append("algorithm=").append(algorithm).append(", ");
+        header.append("response=\"").append(response).append("\"");
+        if (qopAuth) {
+            header.append(", qop=auth, nc=").append(nc).append(", cnonce=\"").append(cnonce).append("\"");
+        }
+        if (opaque != null) {
+            header.append(", opaque=\"").append(opaque).append("\"");
+        }
+        return header.toString();
+    }
+
+    // Takes a WWW-Authenticate header from a 401; true if the request is worth repeating
+    // with the new challenge (a fresh nonce, or the first challenge seen)
+    public synchronized boolean onChallenge(String challenge) {
+        if (!hasCredentials() || challenge == null) {
+            return false;
+        }
+        String trimmed = challenge.trim();
+        if (trimmed.regionMatches(true, 0, "Basic", 0, 5)) {
+            boolean first = !basic;
+            basic = true;
+            return first;
+        }
+        if (!trimmed.regionMatches(true, 0, "Digest", 0, 6)) {
+            Log.w(TAG, "Unsupported auth scheme: " + trimmed);
+            return false;
+        }
+        
+        Map<String, String> params = parseParams(trimmed.substring(6));
+        String newNonce = params.get("nonce");
+        String newAlgorithm = params.containsKey("algorithm") ? params.get("algorithm").toUpperCase() : "MD5";
+        if (newNonce == null || !isSupported(newAlgorithm)) {
+            Log.w(TAG, "Unusable digest challenge: " + trimmed);
+            return false;
+        }
+        // The same nonce rejected again means the credentials are wrong
+        boolean fresh = !newNonce.equals(nonce);
+        basic = false;
+        realm = params.containsKey("realm") ? params.get("realm") : "";
+        nonce = newNonce;
+        opaque = params.get("opaque");
+        algorithm = newAlgorithm;
+        String qop = params.get("qop");
+        qopAuth = qop != null && qop.contains("auth");
+        nonceCount = 0;
+        return fresh;
+    }
+
+    // "auth" object for a JSON-RPC request, or null if no RPC challenge has been seen yet
+    public synchronized JSONObject rpcAuth() {
+        if (!hasCredentials() || rpcRealm == null) {
+            return null;
+        }
+        long cnonce = random.nextInt(Integer.MAX_VALUE);
+        String ha2 = hash("SHA-256", "dummy_method:dummy_uri");
+        String response = hash("SHA-256", getHa1("SHA-256", rpcRealm) + ":" + rpcNonce + ":1:" + cnonce + ":auth:" + ha2);
+        JSONObject auth = new JSONObject();
+        try {
+            auth.put("realm", rpcRealm);
+            auth.put("username", username);
+            auth.put("nonce", rpcNonce);
+            auth.put("cnonce", cnonce);
+            auth.put("response", response);
+            auth.put("algorithm", "SHA-256");
+        } catch (JSONException e) {
+            return null;
+        }
+        return auth;
+    }
+
+    // Takes the message of a JSON-RPC 401 error, which carries the challenge as JSON text;
+    // true if the call is worth repeating
+    public synchronized boolean onRpcChallenge(String errorMessage) {
+        if (!hasCredentials() || errorMessage == null) {
+            return false;
+        }
+        try {
+            JSONObject challenge = new JSONObject(errorMessage);
+            long newNonce = challenge.getLong("nonce");
+            boolean fresh = rpcRealm == null || newNonce != rpcNonce;
+            rpcRealm = challenge.optString("realm", "");
+            rpcNonce = newNonce;
+            return fresh;
+        } catch (JSONException e) {
+            Log.w(TAG, "Unusable RPC challenge: " + errorMessage);
+            return false;
+        }
+    }
+
+    private String getHa1(String ha1Algorithm, String forRealm) {
+        String key = ha1Algorithm + ":" + forRealm;
+        if (!key.equals(ha1Key)) {
+            ha1 = hash(ha1Algorithm, username + ":" + forRealm + ":" + password);
+            ha1Key = key;
+        }
+        return ha1;
+    }
+
+    private static boolean isSupported(String algorithm) {
+        return "SHA-256".equals(algorithm) || "MD5".equals(algorithm);
+    }
+
+    private static String hash(String algorithm, String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            byte[] bytes = digest.digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // realm="x", nonce="y", qop="auth", algorithm=SHA-256
+    private static Map<String, String> parseParams(String text) {
+        Map<String, String> params = new HashMap<String, String>();
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            while (i < length && (text.charAt(i) == ' ' || text.charAt(i) == ',')) {
+                i++;
+            }
+            int eq = text.indexOf('=', i);
+            if (eq < 0) {
+                break;
+            }
+            String name = text.substring(i, eq).trim().toLowerCase();
+            i = eq + 1;
+            String value;
+            if (i < length && text.charAt(i) == '"') {
+                int end = text.indexOf('"', i + 1);
+                if (end < 0) {
+                    end = length;
+                }
+                value = text.substring(i + 1, end);
+                i = end + 1;
+            } else {
+                int end = text.indexOf(',', i);
+                if (end < 0) {
+                    end = length;
+                }
+                value = text.substring(i, end).trim();
+                i = end;
+            }
+            params.put(name, value);
+        }
+        return params;
+    }
+}
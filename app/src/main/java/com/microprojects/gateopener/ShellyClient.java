@@ -2,51 +2,120 @@ package com.microprojects.gateopener;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
 public class ShellyClient {
 
     private static final String TAG = "ShellyClient";
+    // Upper limit for one request; the actual timeout follows the device's measured round-trip time
     private static final int TIMEOUT_MS = 5000;
-    private static final int MAX_RETRIES = 3;
-    private static final int RETRY_DELAY_MS = 500;
     private static final int VERIFY_DELAY_MS = 100;
     private static final int PING_TIMEOUT_MS = 3000;
+    // Relay on-time; the device switches itself off after this, 0 sends separate ON and OFF commands
+    public static final int DEFAULT_PULSE_MS = 500;
+    // End-to-end time budget for one trigger, including detection, retries and waits
+    public static final long DEFAULT_TRIGGER_BUDGET_MS = 8000;
+    // The OFF command gets its own budget so the relay is released even when the trigger ran out of time
+    private static final long OFF_BUDGET_MS = 5000;
+    // How long the built-in HTTP commands hold the relay on when the pulse is not timed by the device
+    private static final int ON_TIME_MS = 500;
+    public static final String TRANSPORT_HTTP = "http";
+    public static final String TRANSPORT_WEBSOCKET = "websocket";
+    public static final String TRANSPORT_UDP = "udp";
+    public static final String HTTP_CLIENT_RAW = "raw";
+    // DeviceHealth route prefixes for the RPC channels; the HTTP route is the base URL itself
+    private static final String WEBSOCKET_ROUTE = "ws:";
+    private static final String UDP_ROUTE = "udp:";
 
     public static boolean ping(String shellyBaseUrl) {
         if (shellyBaseUrl == null || shellyBaseUrl.isEmpty()) {
             return false;
         }
-        
+        return ping(normalizeUrl(shellyBaseUrl), PING_TIMEOUT_MS);
+    }
+
+    // The outcome feeds the device's health, so heartbeats open and close its circuit, and
+    // the latency histogram
+    private static boolean ping(String baseUrl, int timeoutMs) {
+        DeviceHealth health = DeviceHealth.forRoute(baseUrl);
+        long start = SystemClock.elapsedRealtime();
+        // Use /shelly endpoint which is supported by all Shelly devices
+        try {
+            ShellyConnection connection = ShellyConnection.forUrl(baseUrl);
+            ShellyConnection.Response response = connection.get("/shelly", timeoutMs);
+            if (response.isOk()) {
+                ShellyDevice.update(baseUrl, response.body());
+            }
+            Log.d(TAG, "Round trip to " + baseUrl + ": " + connection.getRtt());
+            if (response.code >= 200 && response.code < 400) {
+                long rttMs = SystemClock.elapsedRealtime() - start;
+                health.recordSuccess(rttMs);
+                LatencyHistogram.recordPing(rttMs);
+                return true;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Ping failed: " + e.getMessage());
+        }
+        health.recordFailure();
+        LatencyHistogram.recordLoss();
+        return false;
+    }
+
+    // Health of the relay at this URL, shared by the heartbeat and the trigger path
+    public static DeviceHealth getHealth(String shellyBaseUrl) {
+        return DeviceHealth.forRoute(normalizeUrl(shellyBaseUrl));
+    }
+
+    // Pushes the connection-level settings (HTTP client, timeout bounds, credentials) to the
+    // transport classes; call after the config changes and before pinging the device
+    public static void applySettings(Context context) {
+        applySettings(context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE));
+    }
+
+    private static void applySettings(SharedPreferences prefs) {
+        ShellyConnection.setRawHttp(HTTP_CLIENT_RAW.equals(prefs.getString("shelly_http_client", "")));
+        RttEstimator.setBounds(prefs.getInt("timeout_floor_ms", RttEstimator.DEFAULT_FLOOR_MS),
+                prefs.getInt("timeout_ceiling_ms", RttEstimator.DEFAULT_CEILING_MS));
+        ShellyAuth.setCredentials(prefs.getString("shelly_username", ShellyAuth.DEFAULT_USERNAME),
+                prefs.getString("shelly_password", ""));
+    }
+
+    // Keeps the pooled socket to the relay open between calls so a trigger skips the TCP handshake
+    public static void keepWarm(String shellyBaseUrl) {
+        if (shellyBaseUrl == null || shellyBaseUrl.isEmpty()) {
+            return;
+        }
+        ShellyConnection connection = ShellyConnection.forUrl(normalizeUrl(shellyBaseUrl));
+        ShellyDevice device = ShellyDevice.getCached(connection.getBaseUrl());
+        if (device == null) {
+            // The probe warms the socket as well
+            ShellyDevice.get(connection, PING_TIMEOUT_MS);
+        } else if (ShellyAuth.hasCredentials() && !ShellyAuth.forUrl(connection.getBaseUrl()).hasChallenge()) {
+            // /shelly is always open, so fetch the auth challenge with a protected status request;
+            // the trigger can then authenticate its first request without a 401 round trip
+            try {
+                connection.get(device.isRpc() ? "/rpc/Switch.GetStatus?id=0" : "/relay/0", PING_TIMEOUT_MS);
+            } catch (Exception e) {
+                Log.d(TAG, "Auth challenge request failed: " + e.getMessage());
+            }
+        } else {
+            connection.keepWarm(PING_TIMEOUT_MS);
+        }
+    }
+
+    private static String normalizeUrl(String shellyBaseUrl) {
         shellyBaseUrl = shellyBaseUrl.trim();
         if (!shellyBaseUrl.startsWith("http://") && !shellyBaseUrl.startsWith("https://")) {
             shellyBaseUrl = "http://" + shellyBaseUrl;
         }
         
-        // Use /shelly endpoint which is supported by all Shelly devices
-        String pingUrl = shellyBaseUrl + "/shelly";
-        
-        try {
-            URL url = new URL(pingUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setConnectTimeout(PING_TIMEOUT_MS);
-            conn.setReadTimeout(PING_TIMEOUT_MS);
-            conn.setRequestMethod("GET");
-            int code = conn.getResponseCode();
-            conn.disconnect();
-            return code >= 200 && code < 400;
-        } catch (Exception e) {
-            Log.w(TAG, "Ping failed: " + e.getMessage());
-            return false;
+        if (shellyBaseUrl.endsWith("/")) {
+            shellyBaseUrl = shellyBaseUrl.substring(0, shellyBaseUrl.length() - 1);
         }
+        return shellyBaseUrl;
     }
 
     public static boolean triggerGate(String shellyBaseUrl) {
@@ -58,39 +127,190 @@ public class ShellyClient {
     }
 
     public static boolean triggerGate(String shellyBaseUrl, Context context, StringBuilder errorDetails) {
+        return triggerGate(shellyBaseUrl, context, errorDetails, Deadline.after(DEFAULT_TRIGGER_BUDGET_MS));
+    }
+
+    public static boolean triggerGate(String shellyBaseUrl, Context context, StringBuilder errorDetails, Deadline deadline) {
+        return trigger(shellyBaseUrl, context, errorDetails, deadline) == null;
+    }
+
+    // Returns null on success, otherwise the kind of failure, so a caller can tell whether
+    // another round (and waking up WiFi for it) is worth it
+    public static RetryPolicy.Failure trigger(String shellyBaseUrl, Context context, StringBuilder errorDetails, Deadline deadline) {
         if (shellyBaseUrl == null || shellyBaseUrl.isEmpty()) {
             Log.e(TAG, "Shelly URL is empty");
             appendError(errorDetails, "URL empty");
-            return false;
+            return RetryPolicy.Failure.PERMANENT;
         }
 
-        shellyBaseUrl = shellyBaseUrl.trim();
-        if (!shellyBaseUrl.startsWith("http://") && !shellyBaseUrl.startsWith("https://")) {
-            shellyBaseUrl = "http://" + shellyBaseUrl;
+        shellyBaseUrl = normalizeUrl(shellyBaseUrl);
+        DeviceHealth health = DeviceHealth.forRoute(shellyBaseUrl);
+        if (!health.isClosed()) {
+            // Known to be down: one cheap request decides instead of the whole retry budget
+            ShellyConnection connection = ShellyConnection.forUrl(shellyBaseUrl);
+            if (!ping(shellyBaseUrl, deadline.timeoutFor(connection.adaptiveTimeout(PING_TIMEOUT_MS)))) {
+                appendError(errorDetails, "Relay unreachable (" + health + ")");
+                return RetryPolicy.Failure.UNREACHABLE;
+            }
         }
         
-        if (shellyBaseUrl.endsWith("/")) {
-            shellyBaseUrl = shellyBaseUrl.substring(0, shellyBaseUrl.length() - 1);
+        RetryPolicy.Failure failure = sendTrigger(shellyBaseUrl, context, errorDetails, deadline);
+        if (failure == null) {
+            health.recordSuccess(-1);
+        } else {
+            health.recordFailure();
         }
+        return failure;
+    }
+
+    // Returns null on success, otherwise the kind of failure
+    private static RetryPolicy.Failure sendTrigger(String shellyBaseUrl, Context context, StringBuilder errorDetails, Deadline deadline) {
+        int pulseMs = DEFAULT_PULSE_MS;
+        String transport = TRANSPORT_HTTP;
+        int udpPort = 0;
+        RetryPolicy policy = RetryPolicy.DEFAULT;
 
         if (context != null) {
             SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
-            String customEndpoint = prefs.getString("shelly_endpoint", "");
-            String customMethod = prefs.getString("shelly_method", "");
-            String customPayload = prefs.getString("shelly_payload", "");
+            pulseMs = prefs.getInt("shelly_pulse_ms", DEFAULT_PULSE_MS);
+            transport = prefs.getString("shelly_transport", TRANSPORT_HTTP);
+            udpPort = prefs.getInt("shelly_udp_port", 0);
+            policy = RetryPolicy.fromPrefs(prefs);
+            applySettings(prefs);
             
-            if (!customEndpoint.isEmpty()) {
-                return triggerCustomShelly(shellyBaseUrl, customEndpoint, customMethod, customPayload, errorDetails);
+            CommandTemplate template = CommandTemplate.get(context);
+            if (template != null) {
+                return triggerCustomShelly(ShellyConnection.forUrl(shellyBaseUrl), deadline, policy, template, errorDetails);
             }
         }
 
-        boolean success = triggerShellyPro1(shellyBaseUrl, errorDetails);
+        if (deadline.isExpired()) {
+            appendError(errorDetails, "No time left to trigger");
+            return RetryPolicy.Failure.TRANSIENT_NETWORK;
+        }
         
-        if (!success) {
-            success = triggerShellyGen1(shellyBaseUrl, errorDetails);
+        ShellyConnection connection = ShellyConnection.forUrl(shellyBaseUrl);
+        ShellyDevice device = ShellyDevice.get(connection, deadline.timeoutFor(PING_TIMEOUT_MS));
+        if (device == null) {
+            // /shelly did not tell us which API to use, race both
+            device = ShellyDevice.race(connection, deadline.timeoutFor(PING_TIMEOUT_MS));
         }
+        RetryPolicy.Failure failure;
         
-        return success;
+        if (TRANSPORT_WEBSOCKET.equals(transport) && (device == null || device.isRpc())) {
+            DeviceHealth channelHealth = DeviceHealth.forRoute(WEBSOCKET_ROUTE + shellyBaseUrl);
+            if (channelHealth.isOpen()) {
+                // Do not spend the connect timeout on a channel that keeps failing
+                Log.w(TAG, "WebSocket channel down (" + channelHealth + "), using HTTP");
+            } else if (triggerShellyWebSocket(shellyBaseUrl, deadline, pulseMs, errorDetails)) {
+                channelHealth.recordSuccess(-1);
+                return null;
+            } else {
+                channelHealth.recordFailure();
+                Log.w(TAG, "WebSocket trigger failed, falling back to HTTP");
+            }
+        }
+        
+        if (TRANSPORT_UDP.equals(transport) && (device == null || device.isRpc())) {
+            DeviceHealth channelHealth = DeviceHealth.forRoute(UDP_ROUTE + shellyBaseUrl);
+            if (udpPort <= 0) {
+                Log.w(TAG, "UDP transport selected without shelly_udp_port, using HTTP");
+            } else if (channelHealth.isOpen()) {
+                Log.w(TAG, "UDP channel down (" + channelHealth + "), using HTTP");
+            } else if (triggerShellyUdp(shellyBaseUrl, deadline, udpPort, pulseMs, errorDetails)) {
+                channelHealth.recordSuccess(-1);
+                return null;
+            } else {
+                channelHealth.recordFailure();
+                Log.w(TAG, "UDP trigger failed, falling back to HTTP");
+            }
+        }
+        
+        if (device == null) {
+            appendError(errorDetails, "Neither Gen2 nor Gen1 API answered");
+            return RetryPolicy.Failure.TRANSIENT_NETWORK;
+        }
+        
+        failure = triggerWithApi(connection, deadline, policy, device, pulseMs, errorDetails);
+        
+        if (failure != null && ShellyDevice.getCached(shellyBaseUrl) == null) {
+            // The device did not understand the cached API, find out which one it speaks now
+            Log.w(TAG, "Cached " + device + " rejected the command, racing both APIs");
+            ShellyDevice raced = ShellyDevice.race(connection, deadline.timeoutFor(PING_TIMEOUT_MS));
+            if (raced != null && raced.isRpc() != device.isRpc()) {
+                failure = triggerWithApi(connection, deadline, policy, raced, pulseMs, errorDetails);
+            }
+        }
+        
+        return failure;
+    }
+
+    private static RetryPolicy.Failure triggerWithApi(ShellyConnection connection, Deadline deadline, RetryPolicy policy, ShellyDevice device, int pulseMs, StringBuilder errorDetails) {
+        if (device.isRpc()) {
+            return triggerShellyPro1(connection, deadline, policy, pulseMs, errorDetails);
+        }
+        return triggerShellyGen1(connection, deadline, policy, pulseMs, errorDetails);
+    }
+
+    // Heartbeat for the WebSocket transport: like ping(), it feeds the relay's health and the
+    // latency histogram, from a ping over the open channel. When the channel is down, triggers
+    // fall back to HTTP, so the heartbeat checks that route instead.
+    public static boolean pingChannel(String shellyBaseUrl) {
+        if (shellyBaseUrl == null || shellyBaseUrl.isEmpty()) {
+            return false;
+        }
+        String baseUrl = normalizeUrl(shellyBaseUrl);
+        boolean wasOpen = ShellyWebSocket.forUrl(baseUrl).isOpen();
+        long start = SystemClock.elapsedRealtime();
+        if (keepChannelOpen(baseUrl)) {
+            // A reconnect includes the handshake, so only a ping on the open channel is timed
+            long rttMs = wasOpen ? SystemClock.elapsedRealtime() - start : -1;
+            DeviceHealth.forRoute(baseUrl).recordSuccess(rttMs);
+            if (rttMs >= 0) {
+                LatencyHistogram.recordPing(rttMs);
+            }
+            return true;
+        }
+        return ping(baseUrl, PING_TIMEOUT_MS);
+    }
+
+    // Keeps the WebSocket channel open; the round trip doubles as the keep-alive ping
+    public static boolean keepChannelOpen(String shellyBaseUrl) {
+        if (shellyBaseUrl == null || shellyBaseUrl.isEmpty()) {
+            return false;
+        }
+        String baseUrl = normalizeUrl(shellyBaseUrl);
+        ShellyWebSocket channel = ShellyWebSocket.forUrl(baseUrl);
+        DeviceHealth channelHealth = DeviceHealth.forRoute(WEBSOCKET_ROUTE + baseUrl);
+        boolean open;
+        try {
+            if (!channel.isOpen()) {
+                channel.connect(PING_TIMEOUT_MS);
+                open = true;
+            } else {
+                open = channel.ping(PING_TIMEOUT_MS);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "WebSocket connect failed: " + e.getMessage());
+            open = false;
+        }
+        if (open) {
+            channelHealth.recordSuccess(-1);
+        } else {
+            channelHealth.recordFailure();
+        }
+        return open;
+    }
+
+    // Budget for what follows an ON: the wait plus OFF_BUDGET_MS, apart from the trigger budget,
+    // so a trigger that spent its budget getting the relay on still turns it off
+    private static Deadline releaseDeadline(long waitMs) {
+        return Deadline.after(waitMs + OFF_BUDGET_MS);
+    }
+
+    // A few round-trip times rather than a fixed 5 s, so a lost request is retried quickly
+    private static int requestTimeout(ShellyConnection connection, Deadline deadline) {
+        return deadline.timeoutFor(connection.adaptiveTimeout(TIMEOUT_MS));
     }
 
     private static void appendError(StringBuilder errorDetails, String message) {
@@ -103,188 +323,254 @@ public class ShellyClient {
         Log.e(TAG, message);
     }
 
-    private static boolean triggerCustomShelly(String baseUrl, String endpoint, String method, String payload, StringBuilder errorDetails) {
-        // Turn ON with retry
-        boolean onSuccess = sendCustomShellyCommandWithRetry(baseUrl, endpoint, method, payload, errorDetails);
-        if (!onSuccess) {
-            appendError(errorDetails, "Custom Shelly: ON failed after " + MAX_RETRIES + " attempts");
+    // Gen2 JSON-RPC over the WebSocket channel; relay state is confirmed by NotifyStatus pushes
+    private static boolean triggerShellyWebSocket(String baseUrl, Deadline deadline, int pulseMs, StringBuilder errorDetails) {
+        ShellyWebSocket channel = ShellyWebSocket.forUrl(baseUrl);
+        RttEstimator rtt = RttEstimator.forUrl(baseUrl);
+        try {
+            channel.connect(deadline.timeoutFor(TIMEOUT_MS));
+            
+            if (pulseMs > 0) {
+                JSONObject result = channel.call("Switch.Set", switchSetParams(true, pulseMs), deadline.timeoutFor(Math.min(TIMEOUT_MS, rtt.timeoutMs())));
+                Log.d(TAG, "WebSocket pulse sent: " + pulseMs + " ms (was_on=" + result.optBoolean("was_on", false) + ")");
+                return true;
+            }
+            
+            channel.call("Switch.Set", switchSetParams(true, 0), deadline.timeoutFor(Math.min(TIMEOUT_MS, rtt.timeoutMs())));
+            if (!channel.awaitRelayOutput(true, deadline.timeoutFor(TIMEOUT_MS))) {
+                appendError(errorDetails, "WebSocket: ON not confirmed");
+                return false;
+            }
+            
+            Deadline offDeadline = releaseDeadline(DEFAULT_PULSE_MS);
+            offDeadline.sleep(DEFAULT_PULSE_MS);
+            channel.call("Switch.Set", switchSetParams(false, 0), offDeadline.timeoutFor(TIMEOUT_MS));
+            if (!channel.awaitRelayOutput(false, offDeadline.timeoutFor(TIMEOUT_MS))) {
+                Log.w(TAG, "WebSocket: OFF not confirmed");
+            }
+            return true;
+            
+        } catch (Exception e) {
+            appendError(errorDetails, "WebSocket: " + e.getMessage());
+            channel.close();
             return false;
         }
-        
+    }
+
+    // Gen2 JSON-RPC over UDP; a lost datagram costs a retransmit timer instead of a TCP timeout
+    private static boolean triggerShellyUdp(String baseUrl, Deadline deadline, int udpPort, int pulseMs, StringBuilder errorDetails) {
         try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Sleep interrupted: " + e.getMessage());
+            ShellyUdpRpc rpc = ShellyUdpRpc.forUrl(baseUrl, udpPort);
+            
+            if (pulseMs > 0) {
+                JSONObject result = rpc.call("Switch.Set", switchSetParams(true, pulseMs), deadline.timeoutFor(TIMEOUT_MS));
+                Log.d(TAG, "UDP pulse sent: " + pulseMs + " ms (was_on=" + result.optBoolean("was_on", false) + ")");
+                return true;
+            }
+            
+            rpc.call("Switch.Set", switchSetParams(true, 0), deadline.timeoutFor(TIMEOUT_MS));
+            JSONObject status = rpc.call("Switch.GetStatus", statusParams(), deadline.timeoutFor(TIMEOUT_MS));
+            if (!status.optBoolean("output", false)) {
+                appendError(errorDetails, "UDP: ON not confirmed");
+                return false;
+            }
+            
+            Deadline offDeadline = releaseDeadline(DEFAULT_PULSE_MS);
+            offDeadline.sleep(DEFAULT_PULSE_MS);
+            rpc.call("Switch.Set", switchSetParams(false, 0), offDeadline.timeoutFor(TIMEOUT_MS));
+            return true;
+            
+        } catch (Exception e) {
+            appendError(errorDetails, "UDP: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static JSONObject statusParams() throws org.json.JSONException {
+        JSONObject params = new JSONObject();
+        params.put("id", 0);
+        return params;
+    }
+
+    private static JSONObject switchSetParams(boolean on, int pulseMs) throws org.json.JSONException {
+        JSONObject params = new JSONObject();
+        params.put("id", 0);
+        params.put("on", on);
+        if (pulseMs > 0) {
+            params.put("toggle_after", pulseMs / 1000.0);
+        }
+        return params;
+    }
+
+    private static RetryPolicy.Failure triggerCustomShelly(ShellyConnection connection, Deadline deadline, RetryPolicy policy, CommandTemplate template, StringBuilder errorDetails) {
+        if (template.isSequence()) {
+            // The first step runs on the trigger budget; every later step (usually the release)
+            // gets a budget of its own, so a slow first step cannot leave the relay latched
+            Deadline stepDeadline = deadline;
+            for (int i = 0; i < template.sequence.size(); i++) {
+                CommandTemplate.Step step = template.sequence.get(i);
+                RetryPolicy.Failure failure = sendCustomShellyCommandWithRetry(connection, stepDeadline, policy, step, errorDetails);
+                if (failure != null) {
+                    appendError(errorDetails, "Custom Shelly: " + step.label + " failed");
+                    return failure;
+                }
+                if (i < template.sequence.size() - 1) {
+                    stepDeadline = releaseDeadline(step.delayMs);
+                    stepDeadline.sleep(step.delayMs);
+                }
+            }
+            return null;
+        }
+        
+        if (template.isPulse()) {
+            // Single request, the device turns the relay off by itself
+            RetryPolicy.Failure failure = sendCustomShellyCommandWithRetry(connection, deadline, policy, template.on, errorDetails);
+            if (failure != null) {
+                appendError(errorDetails, "Custom Shelly: pulse failed");
+            }
+            return failure;
+        }
+        
+        // Turn ON with retry
+        RetryPolicy.Failure onFailure = sendCustomShellyCommandWithRetry(connection, deadline, policy, template.on, errorDetails);
+        if (onFailure != null) {
+            appendError(errorDetails, "Custom Shelly: ON failed");
+            return onFailure;
         }
         
-        // Turn OFF - replace "true" with "false" in payload
-        String offPayload = payload.replace("true", "false");
-        sendCustomShellyCommandWithRetry(baseUrl, endpoint, method, offPayload, errorDetails);
+        Deadline offDeadline = releaseDeadline(template.on.delayMs);
+        offDeadline.sleep(template.on.delayMs);
         
-        return true; // Gate was triggered (ON was successful)
+        // Turn OFF with retry
+        sendCustomShellyCommandWithRetry(connection, offDeadline, policy, template.off, errorDetails);
+        
+        return null; // Gate was triggered (ON was successful)
     }
 
-    private static boolean sendCustomShellyCommandWithRetry(String baseUrl, String endpoint, String method, String payload, StringBuilder errorDetails) {
-        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
-            boolean success = sendCustomShellyCommand(baseUrl, endpoint, method, payload, errorDetails);
-            if (success) {
-                return true;
+    // Returns null on success, otherwise the last failure (a timeout if the deadline ran out first)
+    private static RetryPolicy.Failure sendCustomShellyCommandWithRetry(ShellyConnection connection, Deadline deadline, RetryPolicy policy, CommandTemplate.Step step, StringBuilder errorDetails) {
+        RetryPolicy.Failure failure = RetryPolicy.Failure.TRANSIENT_NETWORK;
+        for (int attempt = 1; !deadline.isExpired(); attempt++) {
+            failure = sendCustomShellyCommand(connection, deadline, step, errorDetails);
+            if (failure == null) {
+                return null;
             }
-            
-            if (attempt < MAX_RETRIES) {
-                try {
-                    Thread.sleep(RETRY_DELAY_MS * attempt);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Retry delay interrupted");
-                }
+            if (!retryAfter(failure, attempt, deadline, policy)) {
+                break;
             }
         }
-        return false;
+        return failure;
     }
 
-    private static boolean sendCustomShellyCommand(String baseUrl, String endpoint, String method, String payload, StringBuilder errorDetails) {
-        String fullUrl = baseUrl + endpoint;
-        
+    // Returns null on success, otherwise the kind of failure
+    private static RetryPolicy.Failure sendCustomShellyCommand(ShellyConnection connection, Deadline deadline, CommandTemplate.Step step, StringBuilder errorDetails) {
         try {
-            URL url = new URL(fullUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod(method.isEmpty() ? "POST" : method.toUpperCase());
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
-
-            if (!payload.isEmpty() && ("POST".equalsIgnoreCase(method) || method.isEmpty())) {
-                connection.setRequestProperty("Content-Type", "application/json");
-                connection.setDoOutput(true);
-                OutputStream os = connection.getOutputStream();
-                os.write(payload.getBytes("UTF-8"));
-                os.flush();
-                os.close();
-            }
-
-            int responseCode = connection.getResponseCode();
-            Log.d(TAG, "Custom Shelly response code: " + responseCode + " payload: " + payload);
-            connection.disconnect();
+            ShellyConnection.Response response = connection.execute(step.method, step.path, step.contentType, step.body, requestTimeout(connection, deadline));
+            Log.d(TAG, "Custom Shelly " + step.label + " response code: " + response.code);
             
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                appendError(errorDetails, "HTTP " + responseCode);
-                return false;
+            if (!response.isOk()) {
+                appendError(errorDetails, "HTTP " + response.code);
+                return RetryPolicy.classify(response.code);
             }
-            return true;
+            return null;
             
         } catch (Exception e) {
             appendError(errorDetails, e.getMessage());
+            return RetryPolicy.classify(e);
         }
-        
-        return false;
     }
 
-    private static boolean triggerShellyPro1(String baseUrl, StringBuilder errorDetails) {
-        String setEndpoint = baseUrl + "/rpc/Switch.Set";
-        String statusEndpoint = baseUrl + "/rpc/Switch.GetStatus?id=0";
+    // Decides whether to make another attempt and waits out the backoff if so
+    private static boolean retryAfter(RetryPolicy.Failure failure, int attempt, Deadline deadline, RetryPolicy policy) {
+        if (!policy.shouldRetry(failure, attempt)) {
+            if (!failure.retryable) {
+                Log.w(TAG, "Not retrying after " + failure + " failure");
+            }
+            return false;
+        }
+        long backoff = policy.backoffMs(attempt);
+        Log.w(TAG, failure + " failure on attempt " + attempt + ", retrying in " + backoff + " ms");
+        return deadline.sleep(backoff);
+    }
+
+    private static RetryPolicy.Failure triggerShellyPro1(ShellyConnection connection, Deadline deadline, RetryPolicy policy, int pulseMs, StringBuilder errorDetails) {
+        if (pulseMs > 0) {
+            return sendShellyPro1PulseWithRetry(connection, deadline, policy, pulseMs, errorDetails);
+        }
         
         // Turn ON with retry and verification
-        boolean onSuccess = sendShellyPro1CommandWithRetry(setEndpoint, true, statusEndpoint, errorDetails);
-        if (!onSuccess) {
+        RetryPolicy.Failure onFailure = sendShellyPro1CommandWithRetry(connection, deadline, policy, true, errorDetails);
+        if (onFailure != null) {
             appendError(errorDetails, "Pro1: ON failed");
-            return false;
+            return onFailure;
         }
         
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Sleep interrupted: " + e.getMessage());
-        }
+        Deadline offDeadline = releaseDeadline(ON_TIME_MS);
+        offDeadline.sleep(ON_TIME_MS);
         
         // Turn OFF with retry
-        sendShellyPro1CommandWithRetry(setEndpoint, false, statusEndpoint, errorDetails);
+        sendShellyPro1CommandWithRetry(connection, offDeadline, policy, false, errorDetails);
         
-        return true; // Gate was triggered (ON was successful and verified)
-    }
-
-    private static boolean sendShellyPro1CommandWithRetry(String endpoint, boolean on, String statusEndpoint, StringBuilder errorDetails) {
-        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
-            boolean commandSent = sendShellyPro1Command(endpoint, on, errorDetails);
-            if (!commandSent) {
-                Log.w(TAG, "Command failed on attempt " + attempt);
-                if (attempt < MAX_RETRIES) {
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS * attempt);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Retry delay interrupted");
-                    }
-                }
-                continue;
+        return null; // Gate was triggered (ON was successful and verified)
+    }
+
+    // One Switch.Set with toggle_after; the device times the pulse so no OFF command is needed.
+    // The Switch.Set reply (was_on) confirms the relay switched, so there is no status poll.
+    private static RetryPolicy.Failure sendShellyPro1PulseWithRetry(ShellyConnection connection, Deadline deadline, RetryPolicy policy, int pulseMs, StringBuilder errorDetails) {
+        RetryPolicy.Failure failure = RetryPolicy.Failure.TRANSIENT_NETWORK;
+        for (int attempt = 1; !deadline.isExpired(); attempt++) {
+            failure = sendShellyPro1Command(connection, deadline, true, pulseMs, errorDetails);
+            if (failure == null) {
+                Log.d(TAG, "Pulse sent: " + pulseMs + " ms");
+                return null;
             }
-            
-            // Verify the relay state
-            try {
-                Thread.sleep(VERIFY_DELAY_MS);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Verify delay interrupted");
+            if (!retryAfter(failure, attempt, deadline, policy)) {
+                break;
             }
-            
-            Boolean actualState = getRelayState(statusEndpoint);
-            if (actualState == null) {
-                Log.w(TAG, "Could not verify relay state on attempt " + attempt);
-                if (attempt < MAX_RETRIES) {
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS * attempt);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Retry delay interrupted");
-                    }
+        }
+        appendError(errorDetails, "Pro1: pulse failed");
+        return failure;
+    }
+
+    // Returns null once the relay is verified in the wanted state, otherwise the last failure
+    private static RetryPolicy.Failure sendShellyPro1CommandWithRetry(ShellyConnection connection, Deadline deadline, RetryPolicy policy, boolean on, StringBuilder errorDetails) {
+        RetryPolicy.Failure failure = RetryPolicy.Failure.TRANSIENT_NETWORK;
+        for (int attempt = 1; !deadline.isExpired(); attempt++) {
+            failure = sendShellyPro1Command(connection, deadline, on, 0, errorDetails);
+            if (failure == null) {
+                // Verify the relay state
+                if (!deadline.sleep(VERIFY_DELAY_MS)) {
+                    failure = RetryPolicy.Failure.TRANSIENT_NETWORK;
+                    break;
                 }
-                continue;
-            }
             
-            if (actualState == on) {
-                Log.d(TAG, "Relay state verified: " + (on ? "ON" : "OFF"));
-                return true;
-            } else {
-                Log.w(TAG, "Relay state mismatch! Expected: " + on + ", Actual: " + actualState);
-                if (attempt < MAX_RETRIES) {
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS * attempt);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Retry delay interrupted");
-                    }
+                Boolean actualState = getRelayState(connection, deadline);
+                if (actualState == null) {
+                    Log.w(TAG, "Could not verify relay state on attempt " + attempt);
+                    failure = RetryPolicy.Failure.TRANSIENT_NETWORK;
+                } else if (actualState == on) {
+                    Log.d(TAG, "Relay state verified: " + (on ? "ON" : "OFF"));
+                    return null;
+                } else {
+                    Log.w(TAG, "Relay state mismatch! Expected: " + on + ", Actual: " + actualState);
+                    failure = RetryPolicy.Failure.DEVICE_BUSY;
                 }
             }
+            if (!retryAfter(failure, attempt, deadline, policy)) {
+                break;
+            }
         }
         
-        return false;
+        return failure;
     }
 
-    private static Boolean getRelayState(String statusEndpoint) {
+    private static Boolean getRelayState(ShellyConnection connection, Deadline deadline) {
         try {
-            URL url = new URL(statusEndpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
+            ShellyConnection.Response response = connection.get("/rpc/Switch.GetStatus?id=0", requestTimeout(connection, deadline));
 
-            int responseCode = connection.getResponseCode();
-            
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-                reader.close();
-                connection.disconnect();
-                
-                String responseStr = response.toString();
-                Log.d(TAG, "GetStatus response: " + responseStr);
-                
-                // Parse JSON response to get output state
-                JSONObject json = new JSONObject(responseStr);
-                if (json.has("output")) {
-                    return json.getBoolean("output");
-                }
+            if (response.isOk()) {
+                return response.findBoolean("output");
             }
-            
-            connection.disconnect();
         } catch (Exception e) {
             Log.e(TAG, "Failed to get relay state: " + e.getMessage());
         }
@@ -292,135 +578,112 @@ public class ShellyClient {
         return null;
     }
 
-    private static boolean sendShellyPro1Command(String endpoint, boolean on, StringBuilder errorDetails) {
+    // Returns null on success, otherwise the kind of failure
+    private static RetryPolicy.Failure sendShellyPro1Command(ShellyConnection connection, Deadline deadline, boolean on, int pulseMs, StringBuilder errorDetails) {
         try {
-            URL url = new URL(endpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
-            connection.setDoOutput(true);
-
-            String jsonPayload = "{\"id\":0,\"on\":" + on + "}";
+            String jsonPayload = pulseMs > 0
+                    ? "{\"id\":0,\"on\":" + on + ",\"toggle_after\":" + (pulseMs / 1000.0) + "}"
+                    : "{\"id\":0,\"on\":" + on + "}";
             
-            OutputStream os = connection.getOutputStream();
-            os.write(jsonPayload.getBytes("UTF-8"));
-            os.flush();
-            os.close();
-
-            int responseCode = connection.getResponseCode();
-            Log.d(TAG, "Shelly Pro 1 response code: " + responseCode + " (on=" + on + ")");
-
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-                reader.close();
-                connection.disconnect();
-                
-                String responseStr = response.toString();
-                Log.d(TAG, "Shelly Pro 1 response: " + responseStr);
-                
+            ShellyConnection.Response response = connection.post("/rpc/Switch.Set", "application/json",
+                    jsonPayload.getBytes("UTF-8"), requestTimeout(connection, deadline));
+            Log.d(TAG, "Shelly Pro 1 response code: " + response.code + " (on=" + on + ")");
+
+            RetryPolicy.Failure failure;
+            if (response.isOk()) {
                 // Validate response - should contain "was_on" field
-                if (responseStr.contains("was_on")) {
-                    return true;
-                } else {
-                    appendError(errorDetails, "Unexpected response");
-                    return false;
+                Boolean wasOn = response.findBoolean("was_on");
+                if (wasOn != null) {
+                    Log.d(TAG, "Shelly Pro 1 was_on=" + wasOn);
+                    return null;
                 }
+                appendError(errorDetails, "Unexpected response");
+                failure = RetryPolicy.Failure.WRONG_PROTOCOL;
             } else {
-                appendError(errorDetails, "HTTP " + responseCode);
+                appendError(errorDetails, "HTTP " + response.code);
+                failure = RetryPolicy.classify(response.code);
             }
-
-            connection.disconnect();
+            
+            if (failure == RetryPolicy.Failure.WRONG_PROTOCOL) {
+                ShellyDevice.invalidate(connection.getBaseUrl());
+            }
+            return failure;
             
         } catch (Exception e) {
             appendError(errorDetails, e.getMessage());
             Log.e(TAG, "Shelly Pro 1 command failed (on=" + on + "): " + e.getMessage());
+            return RetryPolicy.classify(e);
         }
-        
-        return false;
     }
 
-    private static boolean triggerShellyGen1(String baseUrl, StringBuilder errorDetails) {
+    private static RetryPolicy.Failure triggerShellyGen1(ShellyConnection connection, Deadline deadline, RetryPolicy policy, int pulseMs, StringBuilder errorDetails) {
+        if (pulseMs > 0) {
+            // turn=on with a flip-back timer, the device times the pulse
+            RetryPolicy.Failure failure = sendShellyGen1CommandWithRetry(connection, deadline, policy, true, pulseMs, errorDetails);
+            if (failure != null) {
+                appendError(errorDetails, "Gen1: pulse failed");
+            }
+            return failure;
+        }
+        
         // Turn ON with retry
-        boolean onSuccess = sendShellyGen1CommandWithRetry(baseUrl, true, errorDetails);
-        if (!onSuccess) {
+        RetryPolicy.Failure onFailure = sendShellyGen1CommandWithRetry(connection, deadline, policy, true, 0, errorDetails);
+        if (onFailure != null) {
             appendError(errorDetails, "Gen1: ON failed");
-            return false;
+            return onFailure;
         }
         
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Sleep interrupted: " + e.getMessage());
-        }
+        Deadline offDeadline = releaseDeadline(ON_TIME_MS);
+        offDeadline.sleep(ON_TIME_MS);
         
         // Turn OFF with retry
-        sendShellyGen1CommandWithRetry(baseUrl, false, errorDetails);
+        sendShellyGen1CommandWithRetry(connection, offDeadline, policy, false, 0, errorDetails);
         
-        return true;
+        return null;
     }
 
-    private static boolean sendShellyGen1CommandWithRetry(String baseUrl, boolean on, StringBuilder errorDetails) {
-        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
-            boolean success = sendShellyGen1Command(baseUrl, on, errorDetails);
-            if (success) {
-                return true;
+    // Returns null on success, otherwise the last failure (a timeout if the deadline ran out first)
+    private static RetryPolicy.Failure sendShellyGen1CommandWithRetry(ShellyConnection connection, Deadline deadline, RetryPolicy policy, boolean on, int pulseMs, StringBuilder errorDetails) {
+        RetryPolicy.Failure failure = RetryPolicy.Failure.TRANSIENT_NETWORK;
+        for (int attempt = 1; !deadline.isExpired(); attempt++) {
+            failure = sendShellyGen1Command(connection, deadline, on, pulseMs, errorDetails);
+            if (failure == null) {
+                return null;
             }
-            
-            if (attempt < MAX_RETRIES) {
-                try {
-                    Thread.sleep(RETRY_DELAY_MS * attempt);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Retry delay interrupted");
-                }
+            if (!retryAfter(failure, attempt, deadline, policy)) {
+                break;
             }
         }
-        return false;
+        return failure;
     }
 
-    private static boolean sendShellyGen1Command(String baseUrl, boolean on, StringBuilder errorDetails) {
-        String endpoint = baseUrl + "/relay/0?turn=" + (on ? "on" : "off");
+    // Returns null on success, otherwise the kind of failure
+    private static RetryPolicy.Failure sendShellyGen1Command(ShellyConnection connection, Deadline deadline, boolean on, int pulseMs, StringBuilder errorDetails) {
+        String endpoint = "/relay/0?turn=" + (on ? "on" : "off");
+        if (pulseMs > 0) {
+            endpoint += "&timer=" + (pulseMs / 1000.0);
+        }
         
         try {
-            URL url = new URL(endpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
-
-            int responseCode = connection.getResponseCode();
-            Log.d(TAG, "Shelly Gen1 response code: " + responseCode + " (on=" + on + ")");
-
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-                reader.close();
-                String responseStr = response.toString();
-                Log.d(TAG, "Shelly Gen1 response: " + responseStr);
-                
-                connection.disconnect();
-                return true;
-            } else {
-                appendError(errorDetails, "HTTP " + responseCode);
-            }
+            ShellyConnection.Response response = connection.get(endpoint, requestTimeout(connection, deadline));
+            Log.d(TAG, "Shelly Gen1 response code: " + response.code + " (on=" + on + ")");
 
-            connection.disconnect();
+            if (response.isOk()) {
+                Log.d(TAG, "Shelly Gen1 ison=" + response.findBoolean("ison"));
+                return null;
+            }
+            
+            appendError(errorDetails, "HTTP " + response.code);
+            RetryPolicy.Failure failure = RetryPolicy.classify(response.code);
+            if (failure == RetryPolicy.Failure.WRONG_PROTOCOL) {
+                ShellyDevice.invalidate(connection.getBaseUrl());
+            }
+            return failure;
             
         } catch (Exception e) {
             appendError(errorDetails, e.getMessage());
             Log.e(TAG, "Shelly Gen1 request failed (on=" + on + "): " + e.getMessage());
+            return RetryPolicy.classify(e);
         }
-        
-        return false;
     }
 }
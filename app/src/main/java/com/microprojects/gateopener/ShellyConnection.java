@@ -0,0 +1,348 @@
+package com.microprojects.gateopener;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Keep-alive HTTP connection to one Shelly device.
+// Responses are read to the end and the connection is never disconnect()ed after a
+// successful exchange, so HttpURLConnection hands the socket back to its pool and the
+// ON / verify / OFF requests of one trigger share a single TCP connection.
+// A pooled socket the device has already closed fails on first use; that request is
+// repeated once on a fresh socket, but only if it cannot have reached the device (it failed
+// while being written) or is a GET. A POST that was sent may already have switched the relay.
+public class ShellyConnection {
+
+    private static final String TAG = "ShellyConnection";
+    // Sockets idle longer than this are assumed to be closed by the device
+    private static final long WARM_WINDOW_MS = 60000;
+    // keepWarm() sends a request if the socket has been idle this long
+    public static final long KEEP_WARM_INTERVAL_MS = 20000;
+    
+    private static final Map<String, ShellyConnection> connections = new HashMap<String, ShellyConnection>();
+    // Send requests through RawHttpConnection instead of HttpURLConnection
+    private static volatile boolean rawHttp;
+    
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.keepAliveDuration", String.valueOf(WARM_WINDOW_MS));
+    }
+
+    private final String baseUrl;
+    private final RttEstimator rtt;
+    private final ShellyAuth auth;
+    private volatile long lastExchangeAt;
+    private RawHttpConnection raw;
+
+    private ShellyConnection(String baseUrl) {
+        this.baseUrl = baseUrl;
+        this.rtt = RttEstimator.forUrl(baseUrl);
+        this.auth = ShellyAuth.forUrl(baseUrl);
+    }
+
+    public static synchronized ShellyConnection forUrl(String baseUrl) {
+        ShellyConnection connection = connections.get(baseUrl);
+        if (connection == null) {
+            connection = new ShellyConnection(baseUrl);
+            connections.put(baseUrl, connection);
+        }
+        return connection;
+    }
+
+    public static void setRawHttp(boolean enabled) {
+        rawHttp = enabled;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    // Request timeout adapted to the device's measured round-trip time, capped at maxMs
+    public int adaptiveTimeout(int maxMs) {
+        return Math.min(maxMs, rtt.timeoutMs());
+    }
+
+    // Reply bytes are kept undecoded; most callers only need one field via findBoolean()
+    public static class Response {
+        public final int code;
+        // WWW-Authenticate of a 401 reply
+        public final String challenge;
+        private final byte[] data;
+        private final int length;
+        
+        Response(int code, byte[] data, int length, String challenge) {
+            this.code = code;
+            this.challenge = challenge;
+            this.data = data;
+            this.length = length;
+        }
+        
+        public boolean isOk() {
+            return code == HttpURLConnection.HTTP_OK;
+        }
+        
+        public Boolean findBoolean(String field) {
+            return JsonFieldScanner.findBoolean(data, length, field);
+        }
+        
+        public String body() {
+            try {
+                return new String(data, 0, length, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return "";
+            }
+        }
+    }
+
+    // Lets another thread stop a request in flight: abort() closes the request's socket, which
+    // ends a blocking read at once (interrupting the thread would not). Used for the loser of
+    // a race between two requests.
+    public static class Abort {
+        private boolean aborted;
+        private HttpURLConnection urlConnection;
+        private RawHttpConnection raw;
+        
+        public synchronized void abort() {
+            aborted = true;
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            if (raw != null) {
+                raw.abort();
+            }
+        }
+        
+        public synchronized boolean isAborted() {
+            return aborted;
+        }
+        
+        // Returns false if the request was aborted before it started
+        synchronized boolean attach(HttpURLConnection connection, RawHttpConnection rawConnection) {
+            urlConnection = connection;
+            raw = rawConnection;
+            return !aborted;
+        }
+        
+        // The request is over; a late abort() must not close a socket that is back in use
+        synchronized void detach() {
+            urlConnection = null;
+            raw = null;
+        }
+    }
+
+    public Response get(String path, int timeoutMs) throws IOException {
+        return execute("GET", path, null, null, timeoutMs, null);
+    }
+
+    public Response get(String path, int timeoutMs, Abort abort) throws IOException {
+        return execute("GET", path, null, null, timeoutMs, abort);
+    }
+
+    public Response post(String path, String contentType, byte[] body, int timeoutMs) throws IOException {
+        return execute("POST", path, contentType, body, timeoutMs, null);
+    }
+
+    public Response execute(String method, String path, String contentType, byte[] body, int timeoutMs) throws IOException {
+        return execute(method, path, contentType, body, timeoutMs, null);
+    }
+
+    private Response execute(String method, String path, String contentType, byte[] body, int timeoutMs, Abort abort) throws IOException {
+        Response response = executeWithReconnect(method, path, contentType, body, timeoutMs, abort);
+        if (response.code == HttpURLConnection.HTTP_UNAUTHORIZED && auth.onChallenge(response.challenge)) {
+            // First request to a protected device, or it rotated its nonce
+            response = executeWithReconnect(method, path, contentType, body, timeoutMs, abort);
+        }
+        return response;
+    }
+
+    // Thrown by the clients when a request failed before it was completely written, so the
+    // device cannot have acted on it; the cause is what callers see
+    static class UnsentRequestException extends IOException {
+        UnsentRequestException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private Response executeWithReconnect(String method, String path, String contentType, byte[] body, int timeoutMs, Abort abort) throws IOException {
+        boolean reusedSocket = isWarm();
+        try {
+            return executeOnce(method, path, contentType, body, timeoutMs, abort);
+        } catch (IOException e) {
+            IOException cause = unwrap(e);
+            if (cause instanceof SocketTimeoutException) {
+                rtt.onTimeout();
+                throw cause;
+            }
+            if (!reusedSocket || (abort != null && abort.isAborted())
+                    || !(e instanceof UnsentRequestException || "GET".equals(method))) {
+                throw cause;
+            }
+            // The pooled socket was most likely closed by the device while idle
+            Log.d(TAG, "Stale keep-alive socket to " + baseUrl + " (" + cause.getMessage() + "), reconnecting");
+            lastExchangeAt = 0;
+            try {
+                return executeOnce(method, path, contentType, body, timeoutMs, abort);
+            } catch (IOException retryFailure) {
+                throw unwrap(retryFailure);
+            }
+        }
+    }
+
+    private static IOException unwrap(IOException e) {
+        return e instanceof UnsentRequestException ? (IOException) e.getCause() : e;
+    }
+
+    public boolean isWarm() {
+        long last = lastExchangeAt;
+        return last != 0 && SystemClock.elapsedRealtime() - last < WARM_WINDOW_MS;
+    }
+
+    // Cheap request that keeps the pooled socket from going idle; call it periodically
+    public void keepWarm(int timeoutMs) {
+        long last = lastExchangeAt;
+        if (last != 0 && SystemClock.elapsedRealtime() - last < KEEP_WARM_INTERVAL_MS) {
+            return;
+        }
+        try {
+            get("/shelly", timeoutMs);
+        } catch (IOException e) {
+            Log.d(TAG, "Keep-warm request failed: " + e.getMessage());
+        }
+    }
+
+    private Response executeOnce(String method, String path, String contentType, byte[] body, int timeoutMs, Abort abort) throws IOException {
+        if (rawHttp && baseUrl.startsWith("http://")) {
+            RawHttpConnection rawConnection = getRawConnection();
+            if (rawConnection.tryLock()) {
+                try {
+                    if (abort != null && !abort.attach(null, rawConnection)) {
+                        throw new IOException("Aborted");
+                    }
+                    return executeRaw(rawConnection, method, path, contentType, body, timeoutMs);
+                } finally {
+                    if (abort != null) {
+                        abort.detach();
+                    }
+                    rawConnection.unlock();
+                }
+            }
+            // Busy with a parallel request (detection race), this one takes a pooled connection
+        }
+        try {
+            return executeUrlConnection(method, path, contentType, body, timeoutMs, abort);
+        } finally {
+            if (abort != null) {
+                abort.detach();
+            }
+        }
+    }
+
+    private synchronized RawHttpConnection getRawConnection() throws IOException {
+        if (raw == null) {
+            raw = new RawHttpConnection(baseUrl);
+        }
+        return raw;
+    }
+
+    private Response executeRaw(RawHttpConnection rawConnection, String method, String path, String contentType, byte[] body, int timeoutMs) throws IOException {
+        if (!isWarm()) {
+            // Idle past the warm window: the device has likely dropped the socket, and a failure on
+            // it would not be replayed, so start from a fresh one
+            rawConnection.close();
+        }
+        rawConnection.connect(timeoutMs);
+        long sentAt = SystemClock.elapsedRealtime();
+        Response response = rawConnection.exchange(method, path, contentType,
+                auth.authorizationHeader(method, path), body, timeoutMs);
+        lastExchangeAt = SystemClock.elapsedRealtime();
+        rtt.record(lastExchangeAt - sentAt);
+        return response;
+    }
+
+    private Response executeUrlConnection(String method, String path, String contentType, byte[] body, int timeoutMs, Abort abort) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        if (abort != null && !abort.attach(connection, null)) {
+            throw new IOException("Aborted");
+        }
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(timeoutMs);
+            connection.setReadTimeout(timeoutMs);
+            connection.setRequestProperty("Connection", "keep-alive");
+            String authorization = auth.authorizationHeader(method, path);
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            
+            if (body != null) {
+                if (contentType != null) {
+                    connection.setRequestProperty("Content-Type", contentType);
+                }
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+            }
+            
+            // Time only the exchange, not the TCP handshake of a cold socket
+            long sentAt;
+            try {
+                connection.connect();
+                sentAt = SystemClock.elapsedRealtime();
+                if (body != null) {
+                    OutputStream os = connection.getOutputStream();
+                    os.write(body);
+                    os.close();
+                }
+            } catch (IOException e) {
+                // A GET is only written by getResponseCode(), which is past this point
+                throw new UnsentRequestException(e);
+            }
+            
+            int code = connection.getResponseCode();
+            InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            Response response = readFully(code, in, connection.getHeaderField("WWW-Authenticate"));
+            lastExchangeAt = SystemClock.elapsedRealtime();
+            rtt.record(lastExchangeAt - sentAt);
+            return response;
+            
+        } catch (IOException e) {
+            // Make sure a broken socket is not handed back to the pool
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    // Draining the body is what lets the socket return to the keep-alive pool
+    private static Response readFully(int code, InputStream in, String challenge) throws IOException {
+        if (in == null) {
+            return new Response(code, new byte[0], 0, challenge);
+        }
+        try {
+            byte[] data = new byte[512];
+            int length = 0;
+            int n;
+            while ((n = in.read(data, length, data.length - length)) != -1) {
+                length += n;
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+            }
+            return new Response(code, data, length, challenge);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.microprojects.gateopener;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// What the relay at a base URL reported on /shelly, cached per URL so triggers go straight
+// to the right protocol instead of trying Gen2 RPC first and falling back to the Gen1 API.
+//   Gen1: {"type":"SHSW-1", ..., "num_outputs":1}
+//   Gen2+: {"id":"shellypro1-...", "model":"SPSW-001XE16EU", "gen":2, "app":"Pro1", ...}
+public class ShellyDevice {
+
+    private static final String TAG = "ShellyDevice";
+    
+    private static final Map<String, ShellyDevice> devices = new HashMap<String, ShellyDevice>();
+    
+    public final int generation;
+    public final String model;
+    public final int relayCount;
+
+    private ShellyDevice(int generation, String model, int relayCount) {
+        this.generation = generation;
+        this.model = model;
+        this.relayCount = relayCount;
+    }
+
+    public boolean isRpc() {
+        return generation >= 2;
+    }
+
+    // Returns the cached device for the URL, probing /shelly if there is none.
+    // Null if the device could not be reached or did not answer like a Shelly.
+    public static ShellyDevice get(ShellyConnection connection, int timeoutMs) {
+        ShellyDevice device = getCached(connection.getBaseUrl());
+        if (device != null) {
+            return device;
+        }
+        try {
+            ShellyConnection.Response response = connection.get("/shelly", timeoutMs);
+            if (response.isOk()) {
+                return update(connection.getBaseUrl(), response.body());
+            }
+            Log.w(TAG, "Device probe failed: HTTP " + response.code);
+        } catch (Exception e) {
+            Log.w(TAG, "Device probe failed: " + e.getMessage());
+        }
+        return null;
+    }
+
+    public static synchronized ShellyDevice getCached(String baseUrl) {
+        return devices.get(baseUrl);
+    }
+
+    // Records the device from a /shelly response body; returns null if it could not be parsed
+    public static ShellyDevice update(String baseUrl, String shellyResponse) {
+        ShellyDevice device = parse(shellyResponse);
+        if (device == null) {
+            return null;
+        }
+        synchronized (ShellyDevice.class) {
+            ShellyDevice previous = devices.put(baseUrl, device);
+            if (previous == null || previous.generation != device.generation) {
+                Log.d(TAG, "Detected " + device + " at " + baseUrl);
+            }
+        }
+        return device;
+    }
+
+    // Hedged detection for devices whose /shelly answer did not help: asks the Gen2 RPC API
+    // and the Gen1 API at the same time and keeps whichever gives a valid reply first.
+    // Both probes are read-only status requests, so the relay is never switched twice.
+    // Returns null if neither answers within timeoutMs.
+    // The probes run on two short-lived threads of their own: the caller is usually a
+    // BackgroundExecutor worker, and probes queued behind it could wait out the whole race.
+    // The loser is aborted by closing its socket, so it does not keep a connection (or the raw
+    // connection's lock) busy.
+public static ShellyDevice race(ShellyConnection connection, int timeoutMs) {
+        final CountDownLatch decided = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        final ShellyDevice[] winner = new ShellyDevice[1];
+        
+        ShellyConnection.Abort[] probes = new ShellyConnection.Abort[] {
+                startProbe(connection, "/rpc/Switch.GetStatus?id=0", "output", 2, timeoutMs, decided, failures, winner),
+                startProbe(connection, "/relay/0", "ison", 1, timeoutMs, decided, failures, winner)
+        };
+        
+        try {
+            decided.await(timeoutMs + 500, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Protocol race interrupted");
+            Thread.currentThread().interrupt();
+        }
+        
+        // The loser is not waited for; its result is ignored
+        for (ShellyConnection.Abort probe : probes) {
+            probe.abort();
+        }
+        
+        ShellyDevice device;
+        synchronized (winner) {
+            device = winner[0];
+        }
+        if (device != null) {
+            synchronized (ShellyDevice.class) {
+                devices.put(connection.getBaseUrl(), device);
+            }
+            Log.d(TAG, "Protocol race won by " + device + " at " + connection.getBaseUrl());
+        }
+        return device;
+    }
+
+    private static ShellyConnection.Abort startProbe(final ShellyConnection connection, final String path, final String marker,
+                                                     final int generation, final int timeoutMs, final CountDownLatch decided,
+                                                     final AtomicInteger failures, final ShellyDevice[] winner) {
+        final ShellyConnection.Abort abort = new ShellyConnection.Abort();
+        Thread probe = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean valid = false;
+                try {
+                    ShellyConnection.Response response = connection.get(path, timeoutMs, abort);
+                    valid = response.isOk() && response.findBoolean(marker) != null;
+                } catch (Exception e) {
+                    Log.d(TAG, "Probe " + path + " failed: " + e.getMessage());
+                }
+                
+                if (valid) {
+                    synchronized (winner) {
+                        if (winner[0] == null) {
+                            winner[0] = new ShellyDevice(generation, "", 1);
+                        }
+                    }
+                    decided.countDown();
+                } else if (failures.incrementAndGet() == 2) {
+                    decided.countDown();
+                }
+            }
+        }, "GateOpener-probe-gen" + generation);
+        probe.setDaemon(true);
+        probe.start();
+        return abort;
+    }
+
+    // Called when the device answers in a way that does not fit the cached generation
+    public static synchronized void invalidate(String baseUrl) {
+        if (devices.remove(baseUrl) != null) {
+            Log.d(TAG, "Forgot cached device at " + baseUrl);
+        }
+    }
+
+    // Called when the Shelly configuration changes
+    public static synchronized void invalidateAll() {
+        devices.clear();
+    }
+
+    private static ShellyDevice parse(String shellyResponse) {
+        try {
+            JSONObject json = new JSONObject(shellyResponse);
+            if (json.has("gen")) {
+                return new ShellyDevice(json.getInt("gen"), json.optString("model", json.optString("app", "")),
+                        json.optInt("num_outputs", 1));
+            }
+            if (json.has("type")) {
+                return new ShellyDevice(1, json.getString("type"), json.optInt("num_outputs", 1));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unexpected /shelly response: " + e.getMessage());
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Gen" + generation + (model.isEmpty() ? "" : " " + model) + " (" + relayCount + (relayCount == 1 ? " relay)" : " relays)");
+    }
+}
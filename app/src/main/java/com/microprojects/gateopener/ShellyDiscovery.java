@@ -0,0 +1,319 @@
+package com.microprojects.gateopener;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Finds a Shelly on the LAN by its device id (shelly_device_id, e.g. "shellypro1-30c6f7829de4")
+// with an mDNS query, so a new DHCP lease does not break the configured shelly_url.
+// The device answers for <id>.local and for its <id>._shelly._tcp / <id>._http._tcp services.
+// The resolved URL is cached (and saved, so it survives a restart) and is only looked up
+// again when a request to it fails; until then shelly_url is the fallback.
+public class ShellyDiscovery {
+
+    private static final String TAG = "ShellyDiscovery";
+    private static final String MDNS_GROUP = "224.0.0.251";
+    private static final int MDNS_PORT = 5353;
+    private static final int RESOLVE_TIMEOUT_MS = 2000;
+    private static final int QUERY_REPEAT_MS = 500;
+    // A failing device is not looked up more often than this
+    private static final long MIN_REFRESH_INTERVAL_MS = 5000;
+    
+    private static final int TYPE_A = 1;
+    private static final int TYPE_SRV = 33;
+    private static final int CLASS_IN = 1;
+    
+    private static String resolvedId;
+    private static String resolvedUrl;
+    private static boolean refreshing;
+    private static long lastRefreshAt;
+    
+    // The URL to use for the relay: the discovered address when shelly_device_id is set
+    // and has been resolved, otherwise shelly_url
+    public static String getShellyUrl(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
+        String configuredUrl = prefs.getString("shelly_url", "");
+        String deviceId = prefs.getString("shelly_device_id", "").trim();
+        if (deviceId.isEmpty()) {
+            return configuredUrl;
+        }
+        
+        synchronized (ShellyDiscovery.class) {
+            if (deviceId.equals(resolvedId) && resolvedUrl != null) {
+                return resolvedUrl;
+            }
+            if (deviceId.equals(prefs.getString("shelly_resolved_id", ""))) {
+                String savedUrl = prefs.getString("shelly_resolved_url", "");
+                if (!savedUrl.isEmpty()) {
+                    resolvedId = deviceId;
+                    resolvedUrl = savedUrl;
+                    return savedUrl;
+                }
+            }
+        }
+        refresh(context);
+        return configuredUrl;
+    }
+
+    // Looks the device up again in the background; call when a request to it failed
+    public static void refresh(final Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
+        final String deviceId = prefs.getString("shelly_device_id", "").trim();
+        if (deviceId.isEmpty()) {
+            return;
+        }
+        synchronized (ShellyDiscovery.class) {
+            long now = SystemClock.elapsedRealtime();
+            if (refreshing || (lastRefreshAt != 0 && now - lastRefreshAt < MIN_REFRESH_INTERVAL_MS)) {
+                return;
+            }
+            refreshing = true;
+            lastRefreshAt = now;
+        }
+        
+        boolean queued = BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.DISCOVERY, "ShellyDiscovery", new Runnable() {
+            @Override
+            public void run() {
+                String url = null;
+                try {
+                    url = resolveWithMulticastLock(context, deviceId);
+                } finally {
+                    synchronized (ShellyDiscovery.class) {
+                        refreshing = false;
+                    }
+                }
+                if (url != null) {
+                    store(context, deviceId, url);
+                } else {
+                    Log.w(TAG, deviceId + " did not answer the mDNS query");
+                }
+            }
+        });
+        if (!queued) {
+            synchronized (ShellyDiscovery.class) {
+                refreshing = false;
+            }
+        }
+    }
+
+    public static synchronized void invalidate() {
+        resolvedId = null;
+        resolvedUrl = null;
+        lastRefreshAt = 0;
+    }
+
+    // Multicast replies are filtered out by most WiFi drivers unless a lock is held
+    private static String resolveWithMulticastLock(Context context, String deviceId) {
+        WifiManager.MulticastLock lock = null;
+        try {
+            WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            if (wifiManager != null) {
+                lock = wifiManager.createMulticastLock("GateOpener::mDNS");
+                lock.setReferenceCounted(false);
+                lock.acquire();
+            }
+            return resolve(deviceId, RESOLVE_TIMEOUT_MS);
+        } catch (Exception e) {
+            Log.w(TAG, "mDNS lookup failed: " + e.getMessage());
+            return null;
+        } finally {
+            if (lock != null && lock.isHeld()) {
+                lock.release();
+            }
+        }
+    }
+
+    private static void store(Context context, String deviceId, String url) {
+        boolean changed;
+        synchronized (ShellyDiscovery.class) {
+            changed = !url.equals(resolvedUrl);
+            resolvedId = deviceId;
+            resolvedUrl = url;
+        }
+        if (changed) {
+            context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE).edit()
+                    .putString("shelly_resolved_id", deviceId)
+                    .putString("shelly_resolved_url", url)
+                    .apply();
+            ActivityLogger.log(context, "Shelly " + deviceId + " found at " + url);
+        }
+    }
+
+    // Sends an mDNS query for the device and returns its base URL, or null if it did not
+    // answer within timeoutMs. Uses a non-5353 source port, so the device answers by unicast
+    // (RFC 6762 legacy query) and no multicast membership is needed.
+    public static String resolve(String deviceId, int timeoutMs) throws IOException {
+        String id = deviceId.toLowerCase(Locale.US);
+        byte[] query = buildQuery(id);
+        InetAddress group = InetAddress.getByName(MDNS_GROUP);
+        byte[] buffer = new byte[9000];
+        
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+            long nextQueryAt = 0;
+            while (true) {
+                long now = SystemClock.elapsedRealtime();
+                if (now >= deadline) {
+                    return null;
+                }
+                if (now >= nextQueryAt) {
+                    socket.send(new DatagramPacket(query, query.length, group, MDNS_PORT));
+                    nextQueryAt = now + QUERY_REPEAT_MS;
+                }
+                socket.setSoTimeout((int) Math.max(1, Math.min(nextQueryAt, deadline) - now));
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                String url = parseResponse(id, packet.getData(), packet.getLength());
+                if (url != null) {
+                    return url;
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    // A for <id>.local, SRV for the device's _shelly._tcp and _http._tcp instances
+    private static byte[] buildQuery(String id) throws IOException {
+        String[] names = {id + ".local", id + "._shelly._tcp.local", id + "._http._tcp.local"};
+        int[] types = {TYPE_A, TYPE_SRV, TYPE_SRV};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Header: id, flags, 3 questions, no records
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, names.length);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        for (int i = 0; i < names.length; i++) {
+            for (String label : names[i].split("\\.")) {
+                byte[] bytes = label.getBytes("UTF-8");
+                out.write(bytes.length);
+                out.write(bytes);
+            }
+            out.write(0);
+            writeShort(out, types[i]);
+            writeShort(out, CLASS_IN);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    // Picks the device's address (and service port) out of a response; null if the
+    // response is about something else
+    private static String parseResponse(String id, byte[] data, int length) {
+        if (length < 12) {
+            return null;
+        }
+        int questions = readShort(data, 4);
+        int records = readShort(data, 6) + readShort(data, 8) + readShort(data, 10);
+        int[] pos = {12};
+        
+        Map<String, String> addresses = new HashMap<String, String>();
+        String srvTarget = null;
+        int srvPort = 80;
+        try {
+            for (int i = 0; i < questions; i++) {
+                readName(data, length, pos);
+                pos[0] += 4;
+            }
+            for (int i = 0; i < records; i++) {
+                String name = readName(data, length, pos).toLowerCase(Locale.US);
+                if (pos[0] + 10 > length) {
+                    return null;
+                }
+                int type = readShort(data, pos[0]);
+                int dataLength = readShort(data, pos[0] + 8);
+                int dataStart = pos[0] + 10;
+                if (dataStart + dataLength > length) {
+                    return null;
+                }
+                if (type == TYPE_A && dataLength == 4) {
+                    addresses.put(name, (data[dataStart] & 0xFF) + "." + (data[dataStart + 1] & 0xFF) + "."
+                            + (data[dataStart + 2] & 0xFF) + "." + (data[dataStart + 3] & 0xFF));
+                } else if (type == TYPE_SRV && name.startsWith(id + ".") && dataLength > 6) {
+                    srvPort = readShort(data, dataStart + 4);
+                    int[] targetPos = {dataStart + 6};
+                    srvTarget = readName(data, length, targetPos).toLowerCase(Locale.US);
+                }
+                pos[0] = dataStart + dataLength;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Ignoring malformed mDNS packet: " + e.getMessage());
+            return null;
+        }
+        
+        String address = srvTarget != null ? addresses.get(srvTarget) : null;
+        if (address == null) {
+            address = addresses.get(id + ".local");
+            srvPort = 80;
+        }
+        if (address == null) {
+            return null;
+        }
+        return "http://" + address + (srvPort != 80 ? ":" + srvPort : "");
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    // Reads a possibly compressed name at pos[0] and moves pos[0] past it
+    private static String readName(byte[] data, int length, int[] pos) throws IOException {
+        StringBuilder name = new StringBuilder();
+        int p = pos[0];
+        int end = -1;
+        int jumps = 0;
+        while (true) {
+            if (p >= length) {
+                throw new IOException("name runs past the packet");
+            }
+            int labelLength = data[p] & 0xFF;
+            if (labelLength == 0) {
+                p++;
+                break;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (p + 1 >= length || ++jumps > 16) {
+                    throw new IOException("bad name pointer");
+                }
+                if (end < 0) {
+                    end = p + 2;
+                }
+                p = ((labelLength & 0x3F) << 8) | (data[p + 1] & 0xFF);
+                continue;
+            }
+            if (p + 1 + labelLength > length) {
+                throw new IOException("label runs past the packet");
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(data, p + 1, labelLength, "UTF-8"));
+            p += 1 + labelLength;
+        }
+        pos[0] = end >= 0 ? end : p;
+        return name.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package com.microprojects.gateopener;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+// JSON-RPC over UDP to a Gen2+ Shelly (the device's udp_rpc listen port must be configured).
+// A request is one datagram and needs no TCP connect or teardown. UDP is lossy, so each call
+// retransmits the same request id on a short, growing timer until a reply with that id
+// arrives. Replies to earlier ids (late duplicates of retransmitted requests) are dropped.
+public class ShellyUdpRpc {
+
+    private static final String TAG = "ShellyUdpRpc";
+    private static final String SOURCE = "gateopener";
+    private static final int FIRST_RETRANSMIT_MS = 150;
+    private static final int MAX_RETRANSMIT_MS = 1000;
+    private static final int MAX_DATAGRAM_BYTES = 1500;
+    private static final int HTTP_UNAUTHORIZED = 401;
+    
+    private static final Map<String, ShellyUdpRpc> endpoints = new HashMap<String, ShellyUdpRpc>();
+    
+    private final String host;
+    private final int port;
+    private final RttEstimator rtt;
+    private final ShellyAuth auth;
+    private final byte[] receiveBuffer = new byte[MAX_DATAGRAM_BYTES];
+    private DatagramSocket socket;
+    private InetAddress address;
+    private int nextId = 1;
+    private long duplicateReplies;
+
+    private ShellyUdpRpc(String baseUrl, String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.rtt = RttEstimator.forUrl(baseUrl);
+        this.auth = ShellyAuth.forUrl(baseUrl);
+    }
+
+    public static synchronized ShellyUdpRpc forUrl(String baseUrl, int port) throws IOException {
+        String host = new URL(baseUrl).getHost();
+        String key = host + ":" + port;
+        ShellyUdpRpc endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            endpoint = new ShellyUdpRpc(baseUrl, host, port);
+            endpoints.put(key, endpoint);
+        }
+        return endpoint;
+    }
+
+    public static synchronized void closeAll() {
+        for (ShellyUdpRpc endpoint : endpoints.values()) {
+            endpoint.close();
+        }
+        endpoints.clear();
+    }
+
+    // Sends the request and returns its "result"; throws on error replies and when no reply
+    // arrives within timeoutMs. One call at a time per endpoint.
+    public synchronized JSONObject call(String method, JSONObject params, int timeoutMs) throws IOException {
+        JSONObject reply = exchange(method, params, timeoutMs);
+        JSONObject error = reply.optJSONObject("error");
+        if (error != null && error.optInt("code", 0) == HTTP_UNAUTHORIZED
+                && auth.onRpcChallenge(error.optString("message", null))) {
+            // First call to a protected device, or it rotated its nonce
+            reply = exchange(method, params, timeoutMs);
+            error = reply.optJSONObject("error");
+        }
+        if (reply.has("error")) {
+            throw new IOException("RPC error: " + (error != null ? error.optString("message", "") : ""));
+        }
+        JSONObject result = reply.optJSONObject("result");
+        return result != null ? result : new JSONObject();
+    }
+
+    // Sends the request until its reply arrives; returns the whole reply
+    private JSONObject exchange(String method, JSONObject params, int timeoutMs) throws IOException {
+        if (socket == null) {
+            address = InetAddress.getByName(host);
+            socket = new DatagramSocket();
+        }
+        
+        int id = nextId++;
+        byte[] request;
+        try {
+            JSONObject message = new JSONObject();
+            message.put("id", id);
+            message.put("src", SOURCE);
+            message.put("method", method);
+            if (params != null) {
+                message.put("params", params);
+            }
+            JSONObject authObject = auth.rpcAuth();
+            if (authObject != null) {
+                message.put("auth", authObject);
+            }
+            request = message.toString().getBytes("UTF-8");
+        } catch (JSONException e) {
+            throw new IOException("Bad RPC request: " + e.getMessage());
+        }
+        DatagramPacket requestPacket = new DatagramPacket(request, request.length, address, port);
+        DatagramPacket replyPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        int retransmitMs = FIRST_RETRANSMIT_MS;
+        int sends = 0;
+        long sentAt = 0;
+        JSONObject reply = null;
+        try {
+            while (reply == null) {
+                long now = SystemClock.elapsedRealtime();
+                if (now >= deadline) {
+                    rtt.onTimeout();
+                    throw new SocketTimeoutException("No UDP reply to " + method + " after " + sends + " sends");
+                }
+                socket.send(requestPacket);
+                sentAt = now;
+                sends++;
+                long resendAt = Math.min(now + retransmitMs, deadline);
+                retransmitMs = Math.min(retransmitMs * 2, MAX_RETRANSMIT_MS);
+                reply = receiveReply(id, replyPacket, resendAt);
+            }
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            // Start over with a fresh socket next time
+            close();
+            throw e;
+        }
+        
+        if (sends > 1) {
+            Log.d(TAG, method + " answered after " + sends + " sends");
+        } else {
+            // A reply after a retransmission could belong to either send, so only
+            // first-send replies are timed (Karn's rule)
+            rtt.record(SystemClock.elapsedRealtime() - sentAt);
+        }
+        return reply;
+    }
+
+    public synchronized long getDuplicateReplyCount() {
+        return duplicateReplies;
+    }
+
+    public synchronized void close() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    // Waits until resendAt for the reply to id; null means it is time to retransmit
+    private JSONObject receiveReply(int id, DatagramPacket replyPacket, long resendAt) throws IOException {
+        while (true) {
+            long wait = resendAt - SystemClock.elapsedRealtime();
+            if (wait <= 0) {
+                return null;
+            }
+            socket.setSoTimeout((int) wait);
+            replyPacket.setLength(receiveBuffer.length);
+            try {
+                socket.receive(replyPacket);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            if (!replyPacket.getAddress().equals(address)) {
+                continue;
+            }
+            
+            try {
+                JSONObject reply = new JSONObject(new String(replyPacket.getData(), 0, replyPacket.getLength(), "UTF-8"));
+                if (reply.optInt("id", -1) == id) {
+                    return reply;
+                }
+                // Reply to a retransmission of an earlier request
+                duplicateReplies++;
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring malformed datagram: " + e.getMessage());
+            }
+        }
+    }
+}
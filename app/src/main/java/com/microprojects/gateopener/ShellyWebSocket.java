@@ -0,0 +1,484 @@
+package com.microprojects.gateopener;
+
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Persistent JSON-RPC channel to a Gen2+ Shelly over its /rpc WebSocket.
+// Commands are single frames on an already open socket, and the device pushes
+// NotifyStatus frames when the relay changes, so the relay state is confirmed by the
+// device instead of by sleeping and polling Switch.GetStatus.
+// Plain ws:// only (devices on the LAN); one reader thread per open channel.
+public class ShellyWebSocket {
+
+    private static final String TAG = "ShellyWebSocket";
+    private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String SOURCE = "gateopener";
+    private static final int MAX_MESSAGE_BYTES = 64 * 1024;
+    
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    private static final int HTTP_UNAUTHORIZED = 401;
+    
+    private static final Map<String, ShellyWebSocket> channels = new HashMap<String, ShellyWebSocket>();
+    
+    private final String baseUrl;
+    private final RttEstimator rtt;
+    private final ShellyAuth auth;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, PendingCall> pending = new HashMap<Integer, PendingCall>();
+    private final Object stateLock = new Object();
+    private final Object writeLock = new Object();
+    
+    private volatile Socket socket;
+    private OutputStream out;
+    private volatile boolean open;
+    private volatile long lastFrameAt;
+    // Last known output of switch:0, guarded by stateLock
+    private Boolean relayOutput;
+
+    private ShellyWebSocket(String baseUrl) {
+        this.baseUrl = baseUrl;
+        this.rtt = RttEstimator.forUrl(baseUrl);
+        this.auth = ShellyAuth.forUrl(baseUrl);
+    }
+
+    public static synchronized ShellyWebSocket forUrl(String baseUrl) {
+        ShellyWebSocket channel = channels.get(baseUrl);
+        if (channel == null) {
+            channel = new ShellyWebSocket(baseUrl);
+            channels.put(baseUrl, channel);
+        }
+        return channel;
+    }
+
+    public static synchronized void closeAll() {
+        for (ShellyWebSocket channel : channels.values()) {
+            channel.close();
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public long getIdleMillis() {
+        return SystemClock.elapsedRealtime() - lastFrameAt;
+    }
+
+    private static class PendingCall {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile JSONObject response;
+        volatile String failure;
+    }
+
+    public synchronized void connect(int timeoutMs) throws IOException {
+        if (open) {
+            return;
+        }
+        
+        URL url = new URL(baseUrl);
+        if (!"http".equals(url.getProtocol())) {
+            throw new IOException("WebSocket channel needs an http:// Shelly URL");
+        }
+        String host = url.getHost();
+        int port = url.getPort() > 0 ? url.getPort() : 80;
+        
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), timeoutMs);
+            s.setSoTimeout(timeoutMs);
+            
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            String key = Base64.encodeToString(nonce, Base64.NO_WRAP);
+            String request = "GET /rpc HTTP/1.1\r\n"
+                    + "Host: " + host + ":" + port + "\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + key + "\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n";
+            s.getOutputStream().write(request.getBytes("UTF-8"));
+            
+            InputStream in = s.getInputStream();
+            String statusLine = readLine(in);
+            if (!statusLine.startsWith("HTTP/1.1 101")) {
+                throw new IOException("WebSocket upgrade refused: " + statusLine);
+            }
+            String accept = null;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                    accept = line.substring(colon + 1).trim();
+                }
+            }
+            if (!expectedAccept(key).equals(accept)) {
+                throw new IOException("Bad Sec-WebSocket-Accept");
+            }
+            
+            // The reader thread blocks until the device sends something
+            s.setSoTimeout(0);
+            synchronized (writeLock) {
+                socket = s;
+                out = s.getOutputStream();
+                open = true;
+            }
+            lastFrameAt = SystemClock.elapsedRealtime();
+            startReader(s, in);
+            
+        } catch (IOException e) {
+            closeQuietly(s);
+            throw e;
+        }
+        
+        // The device only sends notifications to peers it has heard from, so register with a
+        // status request; its reply also gives the current relay state
+        JSONObject params = new JSONObject();
+        try {
+            params.put("id", 0);
+            JSONObject status = call("Switch.GetStatus", params, timeoutMs);
+            if (status.has("output")) {
+                setRelayOutput(status.getBoolean("output"));
+            }
+        } catch (Exception e) {
+            close();
+            throw new IOException("Channel registration failed: " + e.getMessage());
+        }
+        Log.d(TAG, "Channel open to " + baseUrl);
+    }
+
+    // Sends a JSON-RPC request and returns its "result"; throws on error replies and timeouts
+    public JSONObject call(String method, JSONObject params, int timeoutMs) throws IOException {
+        JSONObject response = exchange(method, params, timeoutMs);
+        JSONObject error = response.optJSONObject("error");
+        if (error != null && error.optInt("code", 0) == HTTP_UNAUTHORIZED
+                && auth.onRpcChallenge(error.optString("message", null))) {
+            // First call to a protected device, or it rotated its nonce
+            response = exchange(method, params, timeoutMs);
+            error = response.optJSONObject("error");
+        }
+        if (response.has("error")) {
+            throw new IOException("RPC error: " + (error != null ? error.optString("message", "") : ""));
+        }
+        JSONObject result = response.optJSONObject("result");
+        return result != null ? result : new JSONObject();
+    }
+
+    // One request / reply round trip; returns the whole reply
+    private JSONObject exchange(String method, JSONObject params, int timeoutMs) throws IOException {
+        if (!open) {
+            throw new IOException("Channel not open");
+        }
+        
+        int id = nextId.getAndIncrement();
+        PendingCall call = new PendingCall();
+        synchronized (pending) {
+            pending.put(id, call);
+        }
+        try {
+            JSONObject request = new JSONObject();
+            request.put("id", id);
+            request.put("src", SOURCE);
+            request.put("method", method);
+            if (params != null) {
+                request.put("params", params);
+            }
+            JSONObject authObject = auth.rpcAuth();
+            if (authObject != null) {
+                request.put("auth", authObject);
+            }
+            long sentAt = SystemClock.elapsedRealtime();
+            sendFrame(OP_TEXT, request.toString().getBytes("UTF-8"));
+            
+            if (!call.done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                rtt.onTimeout();
+                throw new SocketTimeoutException("No reply to " + method + " within " + timeoutMs + " ms");
+            }
+            if (call.failure != null) {
+                throw new IOException(call.failure);
+            }
+            rtt.record(SystemClock.elapsedRealtime() - sentAt);
+            return call.response;
+            
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for " + method);
+        } catch (org.json.JSONException e) {
+            throw new IOException("Bad RPC message: " + e.getMessage());
+        } finally {
+            synchronized (pending) {
+                pending.remove(id);
+            }
+        }
+    }
+
+    // Waits for the device to report switch:0 in the given state (NotifyStatus push)
+    public boolean awaitRelayOutput(boolean expected, long timeoutMs) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (stateLock) {
+            while (relayOutput == null || relayOutput != expected) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0 || !open) {
+                    return false;
+                }
+                try {
+                    stateLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Round trip on the open channel; used by the service heartbeat instead of an HTTP ping
+    public boolean ping(int timeoutMs) {
+        try {
+            JSONObject params = new JSONObject();
+            params.put("id", 0);
+            JSONObject status = call("Switch.GetStatus", params, timeoutMs);
+            if (status.has("output")) {
+                setRelayOutput(status.getBoolean("output"));
+            }
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Channel ping failed: " + e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    public void close() {
+        Socket s;
+        synchronized (writeLock) {
+            s = socket;
+            socket = null;
+            out = null;
+            open = false;
+        }
+        closeQuietly(s);
+        
+        List<PendingCall> calls;
+        synchronized (pending) {
+            calls = new ArrayList<PendingCall>(pending.values());
+            pending.clear();
+        }
+        for (PendingCall call : calls) {
+            call.failure = "Channel closed";
+            call.done.countDown();
+        }
+        synchronized (stateLock) {
+            relayOutput = null;
+            stateLock.notifyAll();
+        }
+    }
+
+    private void startReader(final Socket s, final InputStream in) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readLoop(in);
+                } catch (Exception e) {
+                    Log.d(TAG, "Channel to " + baseUrl + " closed: " + e.getMessage());
+                }
+                if (socket == s) {
+                    close();
+                }
+            }
+        }, "ShellyWebSocket");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readLoop(InputStream in) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            int b0 = readByte(in);
+            int b1 = readByte(in);
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte(in) << 8) | readByte(in);
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte(in);
+                }
+            }
+            if (length > MAX_MESSAGE_BYTES) {
+                throw new IOException("Frame too large: " + length);
+            }
+            byte[] mask = null;
+            if ((b1 & 0x80) != 0) {
+                mask = new byte[4];
+                readFully(in, mask);
+            }
+            byte[] payload = new byte[(int) length];
+            readFully(in, payload);
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+            }
+            lastFrameAt = SystemClock.elapsedRealtime();
+            
+            if (opcode == OP_PING) {
+                sendFrame(OP_PONG, payload);
+            } else if (opcode == OP_CLOSE) {
+                throw new EOFException("Close frame from device");
+            } else if (opcode == OP_TEXT || opcode == OP_CONTINUATION) {
+                message.write(payload);
+                if (message.size() > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Message too large");
+                }
+                if (fin) {
+                    handleMessage(message.toString("UTF-8"));
+                    message.reset();
+                }
+            }
+            // Pong and binary frames are ignored
+        }
+    }
+
+    private void handleMessage(String text) {
+        try {
+            JSONObject message = new JSONObject(text);
+            if (message.has("id")) {
+                PendingCall call;
+                synchronized (pending) {
+                    call = pending.get(message.getInt("id"));
+                }
+                if (call != null) {
+                    call.response = message;
+                    call.done.countDown();
+                }
+            } else if ("NotifyStatus".equals(message.optString("method", ""))) {
+                JSONObject params = message.optJSONObject("params");
+                JSONObject relay = params != null ? params.optJSONObject("switch:0") : null;
+                if (relay != null && relay.has("output")) {
+                    setRelayOutput(relay.getBoolean("output"));
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring malformed frame: " + e.getMessage());
+        }
+    }
+
+    private void setRelayOutput(boolean output) {
+        synchronized (stateLock) {
+            relayOutput = output;
+            stateLock.notifyAll();
+        }
+    }
+
+    // Client frames are always masked (RFC 6455 section 5.3)
+    private void sendFrame(int opcode, byte[] payload) throws IOException {
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+        frame.write(0x80 | opcode);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        } else {
+            frame.write(0x80 | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                frame.write((int) ((long) payload.length >>> shift));
+            }
+        }
+        frame.write(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ mask[i & 3]);
+        }
+        
+        synchronized (writeLock) {
+            if (out == null) {
+                throw new IOException("Channel not open");
+            }
+            frame.writeTo(out);
+            out.flush();
+        }
+    }
+
+    private static String expectedAccept(String key) throws IOException {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WS_GUID).getBytes("UTF-8"));
+            return Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available");
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = readByte(in)) != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Connection closed by device");
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int n = in.read(buffer, offset, buffer.length - offset);
+            if (n < 0) {
+                throw new EOFException("Connection closed by device");
+            }
+            offset += n;
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -4,20 +4,31 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class WhitelistManager {
 
     private static final String TAG = "WhitelistManager";
     private static WhitelistManager instance;
     
+    private static final int SUFFIX_LENGTH = 9;
+    
     private Context context;
-    private Set<String> whitelist;
+    // Readers always see a complete whitelist; reloads build a new snapshot and swap it in
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+    
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong bloomRejectCount = new AtomicLong();
+    private final AtomicLong bloomFalsePositiveCount = new AtomicLong();
 
     private WhitelistManager(Context context) {
         this.context = context.getApplicationContext();
-        this.whitelist = new HashSet<String>();
         reloadWhitelist();
     }
 
@@ -28,84 +39,349 @@ public class WhitelistManager {
         return instance;
     }
 
-    public void reloadWhitelist() {
-        whitelist.clear();
+    public synchronized void reloadWhitelist() {
+        WhitelistStore.Contents contents = WhitelistStore.read(context);
+        if (contents == null) {
+            contents = migrateFromPrefs();
+        }
+        
+        Snapshot loaded = buildSnapshot(contents);
+        snapshot.set(loaded);
+        Log.d(TAG, "Whitelist loaded with " + contents.keys.length + " numbers, "
+                + loaded.rules.getRuleCount() + " rules, " + loaded.schedules.size() + " schedules, bloom FPR "
+                + loaded.bloomFilter.getExpectedFalsePositiveRate());
+    }
+
+    // Replaces numbers and rules but keeps the scheduled entries, which only come from config
+    public synchronized Delta updateWhitelist(List<String> entries) {
+        return updateWhitelist(entries, Arrays.asList(snapshot.get().schedules.getSchedules()));
+    }
+
+    // Replaces the whitelist with the given entries, touching only numbers that changed.
+    // Entries with '*', 'x' or '?' wildcards are prefix/range rules, see DigitTrie.isRule.
+    // Numbers that are also listed without a schedule are always allowed.
+    public synchronized Delta updateWhitelist(List<String> entries, List<AccessSchedule> schedules) {
+        List<String> numbers = new ArrayList<String>(entries.size());
+        List<String> ruleEntries = new ArrayList<String>();
+        for (String entry : entries) {
+            if (DigitTrie.isRule(entry)) {
+                ruleEntries.add(entry);
+            } else {
+                numbers.add(entry);
+            }
+        }
         
+        long[] keys = WhitelistStore.toSortedKeys(numbers);
+        String[] entrySources = WhitelistStore.toEntries(entries);
+        String[] ruleSources = WhitelistStore.toSortedRules(ruleEntries);
+        AccessSchedule[] scheduleArray = schedules.toArray(new AccessSchedule[schedules.size()]);
+        Snapshot current = snapshot.get();
+        Delta delta = Delta.between(current.keys, keys, current.ruleSources, ruleSources,
+                !Arrays.equals(current.schedules.getSchedules(), scheduleArray));
+        // A change of formatting only ("+32 471..." for "+32471...") is stored but not reported
+        if (delta.isEmpty() && Arrays.equals(current.entrySources, entrySources)) {
+            return delta;
+        }
+        
+        WhitelistStore.Contents contents = new WhitelistStore.Contents(keys, entrySources, ruleSources, scheduleArray);
+        if (!WhitelistStore.write(context, contents)) {
+            ActivityLogger.log(context, "Whitelist store write failed");
+        }
+        snapshot.set(applyDelta(current, contents, delta));
+        Log.d(TAG, "Whitelist updated " + delta + ", now " + keys.length + " numbers");
+        return delta;
+    }
+
+    // The entries as the user wrote them; stores older than version 4 only have the packed
+    // numbers, which come back as bare digits
+    public String getWhitelistText() {
+        Snapshot current = snapshot.get();
+        StringBuilder sb = new StringBuilder();
+        if (current.entrySources != null) {
+            for (String entry : current.entrySources) {
+                if (sb.length() > 0) sb.append("\n");
+                sb.append(entry);
+            }
+            return sb.toString();
+        }
+        for (long key : current.keys) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append(PhoneNumberSet.decode(key));
+        }
+        for (String rule : current.ruleSources) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append(rule);
+        }
+        return sb.toString();
+    }
+
+    // Older versions kept the whitelist as a newline-joined string in GateOpenerPrefs
+    private WhitelistStore.Contents migrateFromPrefs() {
         SharedPreferences prefs = context.getSharedPreferences("GateOpenerPrefs", Context.MODE_PRIVATE);
         String whitelistData = prefs.getString("whitelist", "");
+        List<String> lines = Arrays.asList(whitelistData.split("\n"));
+        long[] keys = WhitelistStore.toSortedKeys(lines);
+        WhitelistStore.Contents contents = new WhitelistStore.Contents(keys, WhitelistStore.toEntries(lines),
+                new String[0], new AccessSchedule[0]);
+        
+        if (prefs.contains("whitelist") && WhitelistStore.write(context, contents)) {
+            prefs.edit().remove("whitelist").apply();
+            Log.d(TAG, "Migrated " + keys.length + " numbers from preferences to whitelist store");
+        }
+        return contents;
+    }
+
+    private static Snapshot buildSnapshot(WhitelistStore.Contents contents) {
+        long[] keys = contents.keys;
+        PhoneNumberSet whitelist = new PhoneNumberSet(keys.length);
+        // Several numbers can share a suffix, so the suffix index counts them
+        PhoneNumberSet suffixIndex = new PhoneNumberSet(keys.length, true);
         
-        if (whitelistData.isEmpty()) {
-            Log.d(TAG, "Whitelist is empty");
-            return;
+        for (long key : keys) {
+            whitelist.add(key);
+            suffixIndex.add(PhoneNumberSet.suffixKey(key, SUFFIX_LENGTH));
         }
+        return new Snapshot(keys, whitelist, suffixIndex, buildBloomFilter(keys), contents.entries,
+                contents.rules, new DigitTrie(contents.rules),
+                new AccessSchedule.Index(contents.schedules, SUFFIX_LENGTH));
+    }
+
+    // Copies the published index and patches it, instead of re-indexing every number
+    private static Snapshot applyDelta(Snapshot current, WhitelistStore.Contents contents, Delta delta) {
+        PhoneNumberSet whitelist = current.whitelist.copy();
+        PhoneNumberSet suffixIndex = current.suffixIndex.copy();
         
-        String[] numbers = whitelistData.split("\n");
-        for (String number : numbers) {
-            String normalized = normalizeNumber(number.trim());
-            if (!normalized.isEmpty()) {
-                whitelist.add(normalized);
-                Log.d(TAG, "Added to whitelist: " + normalized);
-            }
+        for (long key : delta.removed) {
+            whitelist.remove(key);
+            suffixIndex.remove(PhoneNumberSet.suffixKey(key, SUFFIX_LENGTH));
+        }
+        for (long key : delta.added) {
+            whitelist.add(key);
+            suffixIndex.add(PhoneNumberSet.suffixKey(key, SUFFIX_LENGTH));
         }
         
-        Log.d(TAG, "Whitelist loaded with " + whitelist.size() + " numbers");
+        // Rule lists are short; recompiling the trie is cheaper than patching it
+        DigitTrie rules = delta.rulesChanged() ? new DigitTrie(contents.rules) : current.rules;
+        AccessSchedule.Index schedules = delta.schedulesChanged
+                ? new AccessSchedule.Index(contents.schedules, SUFFIX_LENGTH) : current.schedules;
+        NumberBloomFilter bloomFilter = delta.added.length > 0 || delta.removed.length > 0
+                ? buildBloomFilter(contents.keys) : current.bloomFilter;
+        return new Snapshot(contents.keys, whitelist, suffixIndex, bloomFilter, contents.entries,
+                contents.rules, rules, schedules);
+    }
+
+    // Bloom filters cannot drop entries, so this is rebuilt from the keys on every change
+    private static NumberBloomFilter buildBloomFilter(long[] keys) {
+        long[] entries = new long[keys.length * 2];
+        int count = 0;
+        for (long key : keys) {
+            entries[count++] = key;
+            long suffix = PhoneNumberSet.suffixKey(key, SUFFIX_LENGTH);
+            if (suffix != PhoneNumberSet.NO_KEY && suffix != key) {
+                entries[count++] = suffix;
+            }
+        }
+        return new NumberBloomFilter(entries, count);
+    }
+
+    public enum Access {
+        ALLOWED,
+        DENIED_BY_SCHEDULE,
+        UNKNOWN
     }
 
     public boolean isWhitelisted(String phoneNumber) {
+        return checkAccess(phoneNumber) == Access.ALLOWED;
+    }
+
+    public Access checkAccess(String phoneNumber) {
+        return checkAccess(phoneNumber, System.currentTimeMillis());
+    }
+
+    public Access checkAccess(String phoneNumber, long nowMillis) {
         if (phoneNumber == null || phoneNumber.isEmpty()) {
-            return false;
+            return Access.UNKNOWN;
         }
         
-        String normalized = normalizeNumber(phoneNumber);
-        
-        if (whitelist.contains(normalized)) {
-            return true;
-        }
+        Snapshot current = snapshot.get();
+        long key = PhoneNumberSet.encode(phoneNumber);
+        long suffix = PhoneNumberSet.encodeSuffix(phoneNumber, SUFFIX_LENGTH);
+        lookupCount.incrementAndGet();
         
-        for (String whitelistedNumber : whitelist) {
-            if (numbersMatch(normalized, whitelistedNumber)) {
-                return true;
+        if (!current.bloomFilter.mightContain(key) && !current.bloomFilter.mightContain(suffix)) {
+            bloomRejectCount.incrementAndGet();
+            // A plain list of numbers: nothing else could allow the caller
+            if (current.rules.getRuleCount() == 0 && current.schedules.size() == 0) {
+                return Access.UNKNOWN;
             }
+        } else if (current.whitelist.contains(key) || current.suffixIndex.contains(suffix)) {
+            return Access.ALLOWED;
+        } else {
+            bloomFalsePositiveCount.incrementAndGet();
         }
         
-        return false;
-    }
-
-    private String normalizeNumber(String number) {
-        if (number == null) {
-            return "";
+        if (current.rules.matches(phoneNumber)) {
+            return Access.ALLOWED;
         }
         
-        StringBuilder sb = new StringBuilder();
-        for (char c : number.toCharArray()) {
-            if (Character.isDigit(c) || c == '+') {
-                sb.append(c);
+        if (current.schedules.size() > 0) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(nowMillis);
+            Boolean allowed = current.schedules.allows(key, suffix, nowMillis, AccessSchedule.minuteOfWeek(calendar));
+            if (allowed != null) {
+                return allowed ? Access.ALLOWED : Access.DENIED_BY_SCHEDULE;
             }
         }
-        return sb.toString();
+        return Access.UNKNOWN;
+    }
+
+    public int getWhitelistSize() {
+        return snapshot.get().whitelist.size();
+    }
+
+    public int getRuleCount() {
+        return snapshot.get().rules.getRuleCount();
+    }
+
+    public int getScheduleCount() {
+        return snapshot.get().schedules.size();
+    }
+
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    public long getBloomRejectCount() {
+        return bloomRejectCount.get();
+    }
+
+    public long getBloomFalsePositiveCount() {
+        return bloomFalsePositiveCount.get();
     }
 
-    private boolean numbersMatch(String incoming, String whitelisted) {
-        String incomingDigits = incoming.replaceAll("[^0-9]", "");
-        String whitelistedDigits = whitelisted.replaceAll("[^0-9]", "");
+    public double getBloomExpectedFalsePositiveRate() {
+        return snapshot.get().bloomFilter.getExpectedFalsePositiveRate();
+    }
+
+    public String getBloomStats() {
+        NumberBloomFilter filter = snapshot.get().bloomFilter;
+        long passed = lookupCount.get() - bloomRejectCount.get();
+        return String.format(Locale.US, "Bloom %d bits, k=%d, expected FPR %.3f%% | lookups %d, fast rejects %d, false positives %d/%d",
+                filter.getBitCount(), filter.getHashCount(), filter.getExpectedFalsePositiveRate() * 100,
+                lookupCount.get(), bloomRejectCount.get(), bloomFalsePositiveCount.get(), passed);
+    }
+
+    public static final class Delta {
+        final long[] added;
+        final long[] removed;
+        final int addedRules;
+        final int removedRules;
+        final boolean schedulesChanged;
         
-        if (incomingDigits.equals(whitelistedDigits)) {
-            return true;
+        private Delta(long[] added, long[] removed, int addedRules, int removedRules, boolean schedulesChanged) {
+            this.added = added;
+            this.removed = removed;
+            this.addedRules = addedRules;
+            this.removedRules = removedRules;
+            this.schedulesChanged = schedulesChanged;
         }
         
-        if (incomingDigits.length() >= 9 && whitelistedDigits.length() >= 9) {
-            String incomingSuffix = incomingDigits.substring(Math.max(0, incomingDigits.length() - 9));
-            String whitelistedSuffix = whitelistedDigits.substring(Math.max(0, whitelistedDigits.length() - 9));
+        // All arrays must be sorted and free of duplicates
+        static Delta between(long[] oldKeys, long[] newKeys, String[] oldRules, String[] newRules,
+                             boolean schedulesChanged) {
+            long[] added = new long[newKeys.length];
+            long[] removed = new long[oldKeys.length];
+            int addedCount = 0;
+            int removedCount = 0;
+            int i = 0;
+            int j = 0;
+            while (i < oldKeys.length || j < newKeys.length) {
+                if (j == newKeys.length || (i < oldKeys.length && oldKeys[i] < newKeys[j])) {
+                    removed[removedCount++] = oldKeys[i++];
+                } else if (i == oldKeys.length || newKeys[j] < oldKeys[i]) {
+                    added[addedCount++] = newKeys[j++];
+                } else {
+                    i++;
+                    j++;
+                }
+            }
             
-            if (incomingSuffix.equals(whitelistedSuffix)) {
-                return true;
+            int addedRules = 0;
+            int removedRules = 0;
+            i = 0;
+            j = 0;
+            while (i < oldRules.length || j < newRules.length) {
+                int cmp = j == newRules.length ? -1 : i == oldRules.length ? 1 : oldRules[i].compareTo(newRules[j]);
+                if (cmp < 0) {
+                    removedRules++;
+                    i++;
+                } else if (cmp > 0) {
+                    addedRules++;
+                    j++;
+                } else {
+                    i++;
+                    j++;
+                }
             }
+            return new Delta(Arrays.copyOf(added, addedCount), Arrays.copyOf(removed, removedCount),
+                    addedRules, removedRules, schedulesChanged);
+        }
+        
+        public int getAddedCount() {
+            return added.length;
+        }
+        
+        public int getRemovedCount() {
+            return removed.length;
+        }
+        
+        public boolean rulesChanged() {
+            return addedRules > 0 || removedRules > 0;
+        }
+        
+        public boolean isEmpty() {
+            return added.length == 0 && removed.length == 0 && !rulesChanged() && !schedulesChanged;
         }
         
-        return false;
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("+").append(added.length).append(" / -").append(removed.length);
+            if (rulesChanged()) {
+                sb.append(", rules +").append(addedRules).append(" / -").append(removedRules);
+            }
+            if (schedulesChanged) {
+                sb.append(", schedules updated");
+            }
+            return sb.toString();
+        }
     }
 
-    public int getWhitelistSize() {
-        return whitelist.size();
+    private static final class Snapshot {
+        static final Snapshot EMPTY = buildSnapshot(
+                new WhitelistStore.Contents(new long[0], new String[0], new String[0], new AccessSchedule[0]));
+        
+        // Never modified once published
+        final long[] keys;
+        final PhoneNumberSet whitelist;
+        final PhoneNumberSet suffixIndex;
+        final NumberBloomFilter bloomFilter;
+        // Null when the store predates them
+        final String[] entrySources;
+        final String[] ruleSources;
+        final DigitTrie rules;
+        final AccessSchedule.Index schedules;
+        
+        Snapshot(long[] keys, PhoneNumberSet whitelist, PhoneNumberSet suffixIndex, NumberBloomFilter bloomFilter,
+                 String[] entrySources, String[] ruleSources, DigitTrie rules, AccessSchedule.Index schedules) {
+            this.keys = keys;
+            this.whitelist = whitelist;
+            this.suffixIndex = suffixIndex;
+            this.bloomFilter = bloomFilter;
+            this.entrySources = entrySources;
+            this.ruleSources = ruleSources;
+            this.rules = rules;
+            this.schedules = schedules;
+        }
     }
 }
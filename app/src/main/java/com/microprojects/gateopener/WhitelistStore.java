@@ -0,0 +1,228 @@
+package com.microprojects.gateopener;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+// Persists the whitelist as a sorted array of PhoneNumberSet keys in a private binary file,
+// so the large, rarely changing list stays out of the GateOpenerPrefs XML.
+//
+// Layout (big-endian): int magic, int version, int count, long[count] sorted keys,
+// then since version 2: int ruleCount, ruleCount modified-UTF-8 strings (DigitTrie rules),
+// then since version 3: int scheduleCount, scheduleCount AccessSchedule records,
+// then since version 4: int entryCount, entryCount modified-UTF-8 strings (the entries as typed)
+public class WhitelistStore {
+
+    private static final String TAG = "WhitelistStore";
+    private static final String FILE_NAME = "whitelist.bin";
+    private static final int MAGIC = 0x474F574C; // "GOWL"
+    private static final int VERSION = 4;
+    private static final int HEADER_BYTES = 12;
+
+    public static File getStoreFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public static boolean exists(Context context) {
+        return getStoreFile(context).exists();
+    }
+
+    public static class Contents {
+        public final long[] keys;
+        // Numbers and rules as the user wrote them, in their order; null for stores older than version 4
+        public final String[] entries;
+        public final String[] rules;
+        public final AccessSchedule[] schedules;
+        
+        public Contents(long[] keys, String[] entries, String[] rules, AccessSchedule[] schedules) {
+            this.keys = keys;
+            this.entries = entries;
+            this.rules = rules;
+            this.schedules = schedules;
+        }
+    }
+
+    // Returns the stored whitelist, or null if there is no usable store file
+    public static Contents read(Context context) {
+        File file = getStoreFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        
+        DataInputStream in = null;
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(data);
+            
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (data.length < HEADER_BYTES || buffer.getInt() != MAGIC) {
+                Log.e(TAG, "Not a whitelist store: " + file.getAbsolutePath());
+                return null;
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                Log.e(TAG, "Unsupported whitelist store version " + version);
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() < count * 8L) {
+                Log.e(TAG, "Truncated whitelist store");
+                return null;
+            }
+            
+            long[] keys = new long[count];
+            buffer.asLongBuffer().get(keys);
+            
+            String[] entries = null;
+            String[] rules = new String[0];
+            AccessSchedule[] schedules = new AccessSchedule[0];
+            if (version >= 2) {
+                int offset = HEADER_BYTES + count * 8;
+                DataInputStream tailIn = new DataInputStream(new ByteArrayInputStream(data, offset, data.length - offset));
+                rules = new String[tailIn.readInt()];
+                for (int i = 0; i < rules.length; i++) {
+                    rules[i] = tailIn.readUTF();
+                }
+                if (version >= 3) {
+                    schedules = new AccessSchedule[tailIn.readInt()];
+                    for (int i = 0; i < schedules.length; i++) {
+                        schedules[i] = AccessSchedule.readFrom(tailIn);
+                    }
+                }
+                if (version >= 4) {
+                    entries = new String[tailIn.readInt()];
+                    for (int i = 0; i < entries.length; i++) {
+                        entries[i] = tailIn.readUTF();
+                    }
+                }
+            }
+            return new Contents(keys, entries, rules, schedules);
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading whitelist store: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Writes to a temp file and renames it over the store, so readers never see a partial file
+    public static boolean write(Context context, Contents contents) {
+        long[] sortedKeys = contents.keys;
+        File file = getStoreFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        
+        FileOutputStream out = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + sortedKeys.length * 8);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(sortedKeys.length);
+            buffer.asLongBuffer().put(sortedKeys);
+        
+            ByteArrayOutputStream tailBytes = new ByteArrayOutputStream();
+            DataOutputStream tailOut = new DataOutputStream(tailBytes);
+            tailOut.writeInt(contents.rules.length);
+            for (String rule : contents.rules) {
+                tailOut.writeUTF(rule);
+            }
+            tailOut.writeInt(contents.schedules.length);
+            for (AccessSchedule schedule : contents.schedules) {
+                schedule.writeTo(tailOut);
+            }
+            String[] entries = contents.entries != null ? contents.entries : new String[0];
+            tailOut.writeInt(entries.length);
+            for (String entry : entries) {
+                tailOut.writeUTF(entry);
+            }
+            tailOut.flush();
+            
+            out = new FileOutputStream(tmp);
+            out.write(buffer.array());
+            tailBytes.writeTo(out);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Could not replace " + file.getAbsolutePath());
+                tmp.delete();
+                return false;
+            }
+            return true;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing whitelist store: " + e.getMessage());
+            tmp.delete();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    public static long[] toSortedKeys(List<String> numbers) {
+        long[] keys = new long[numbers.size()];
+        int count = 0;
+        for (String number : numbers) {
+            long key = PhoneNumberSet.encode(number);
+            if (key != PhoneNumberSet.NO_KEY) {
+                keys[count++] = key;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || keys[i] != keys[unique - 1]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, unique);
+    }
+
+    // Trimmed, non-empty entries in their original order, kept for display
+    public static String[] toEntries(List<String> entries) {
+        List<String> kept = new ArrayList<String>(entries.size());
+        for (String entry : entries) {
+            String trimmed = entry.trim();
+            if (!trimmed.isEmpty()) {
+                kept.add(trimmed);
+            }
+        }
+        return kept.toArray(new String[kept.size()]);
+    }
+
+    public static String[] toSortedRules(List<String> rules) {
+        TreeSet<String> unique = new TreeSet<String>();
+        for (String rule : rules) {
+            String trimmed = rule.trim();
+            if (!trimmed.isEmpty()) {
+                unique.add(trimmed);
+            }
+        }
+        return unique.toArray(new String[unique.size()]);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+    }
+}
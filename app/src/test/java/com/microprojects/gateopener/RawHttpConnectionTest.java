@@ -0,0 +1,109 @@
+package com.microprojects.gateopener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+// Responses written in several TCP segments, with a pause between them, as a slow device sends them
+public class RawHttpConnectionTest {
+
+    private static final int TIMEOUT_MS = 2000;
+    private static final long SEGMENT_GAP_MS = 100;
+    
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void headersAfterStatusLineInAnotherSegment() throws Exception {
+        serve("HTTP/1.1 200 OK\r\n",
+                "Content-Type: application/json\r\nContent-Length: 11\r\n\r\n",
+                "{\"ok\":true}");
+        ShellyConnection.Response response = get();
+        assertEquals(200, response.code);
+        assertEquals("{\"ok\":true}", response.body());
+    }
+
+    @Test
+    public void chunkedBodyInSeveralSegments() throws Exception {
+        serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n",
+                "5\r\nhello\r\n",
+                "6\r\n world\r\n",
+                "0\r\n\r\n");
+        ShellyConnection.Response response = get();
+        assertEquals(200, response.code);
+        assertEquals("hello world", response.body());
+    }
+
+    @Test
+    public void lineSplitInsideSegment() throws Exception {
+        serve("HTTP/1.1 20", "0 OK\r\nContent-Len", "gth: 2\r\n", "\r\nok");
+        ShellyConnection.Response response = get();
+        assertEquals(200, response.code);
+        assertEquals("ok", response.body());
+    }
+
+    private ShellyConnection.Response get() throws IOException {
+        RawHttpConnection connection = new RawHttpConnection("http://127.0.0.1:" + server.getLocalPort());
+        try {
+            connection.connect(TIMEOUT_MS);
+            return connection.exchange("GET", "/rpc/Switch.GetStatus?id=0", null, null, null, TIMEOUT_MS);
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Answers one request with the given segments, flushing and pausing after each
+    private void serve(final String... segments) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        socket.setTcpNoDelay(true);
+                        readRequestHead(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        for (String segment : segments) {
+                            out.write(segment.getBytes("US-ASCII"));
+                            out.flush();
+                            Thread.sleep(SEGMENT_GAP_MS);
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    // The client side reports the failure
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void readRequestHead(InputStream in) throws IOException {
+        int matched = 0;
+        byte[] end = {'\r', '\n', '\r', '\n'};
+        int b;
+        while (matched < end.length && (b = in.read()) != -1) {
+            matched = b == end[matched] ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+    }
+}